@@ -22,14 +22,36 @@
 
 
 
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.Set;
@@ -44,52 +66,60 @@ public class ChessAlgorithm {
     public static final int PLAYER_MINIMIZER = 2;
 
 
-    public ChessAlgorithm() {}
+    public final Engine engine;
+
+    public ChessAlgorithm() {
+        this(Engine.Default);
+    }
+
+    public ChessAlgorithm(Engine engine) {
+        this.engine = engine;
+    }
 
 
     public void main() {
-        UCI.init(UCI.Options);
         setWheights();
-        tt.TT.resize(UCI.Options.get("Hash").convertToInteger());
-        thread.Threads.set();
-        Search.clear();
+        engine.init();
         thread.Threadd.clearForTheFirstTime = false;
     }
 
+    public static void main(String[] args) {
+        new ChessAlgorithm().main();
+
+        Scanner is = new Scanner(String.join(" ", args));
+        String token = is.hasNext() ? is.next() : "";
+
+        if (token.equals("perft")) {
+            System.exit(Perft.command(Engine.Default, is, System.out) ? 0 : 1);
+        } else if (token.equals("tables")) {
+            try {
+                System.exit(WeightsInitializer.command(System.out) ? 0 : 1);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        } else if (token.equals("bench")) {
+            Position pos = new Position();
+            Position.StateListPtr[] states = {new Position.StateListPtr()};
+            states[0].add(new Position.StateInfo());
+            pos.set(UCI.StartFEN, false, states[0].getLast(), Engine.Default.Threads.main());
+            try {
+                UCI.bench(Engine.Default, pos, is, states);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        } else if (token.isEmpty()) {
+            UCI.loop(Engine.Default, new Scanner(System.in), System.out);
+        }
+    }
+
     public void stopThinking() {
-        thread.Threads.stop = true;
+        engine.Threads.stop = true;
     }
 
     private void setWheights() {
-        PSQT.PieceValue = WeightsInitializer.Weights_Other_Coefficients.PSQT_PieceValue;
-        PSQT.psq = WeightsInitializer.Weights_Other_Coefficients.PSQT_psq;
-        Bitboards.SquareBB = WeightsInitializer.Weights_Other_Coefficients.Bitboards_SquareBB;
-        Bitboards.FileBB = WeightsInitializer.Weights_Other_Coefficients.Bitboards_FileBB;
-        Bitboards.RankBB = WeightsInitializer.Weights_Other_Coefficients.Bitboards_RankBB;
-        Bitboards.AdjacentFilesBB = WeightsInitializer.Weights_Other_Coefficients.Bitboards_AdjacentFilesBB;
-        Bitboards.ForwardRanksBB = WeightsInitializer.Weights_Other_Coefficients.Bitboards_ForwardRanksBB;
-        Bitboards.ForwardFileBB = WeightsInitializer.Weights_Other_Coefficients.Bitboards_ForwardFileBB;
-        Bitboards.PawnAttackSpan = WeightsInitializer.Weights_Other_Coefficients.Bitboards_PawnAttackSpan;
-        Bitboards.PassedPawnMask = WeightsInitializer.Weights_Other_Coefficients.Bitboards_PassedPawnMask;
-        Bitboards.SquareDistance = WeightsInitializer.Weights_Bitboards_SquareDistance.Bitboards_SquareDistance;
-        Bitboards.DistanceRingBB = WeightsInitializer.Weights_Bitboards_DistanceRingBB.Bitboards_DistanceRingBB;
-        Bitboards.PawnAttacks = WeightsInitializer.Weights_Other_Coefficients.Bitboards_PawnAttacks;
-        Bitboards.PseudoAttacks = WeightsInitializer.Weights_Other_Coefficients.Bitboards_PseudoAttacks;
-        Bitboards.RookTable = WeightsInitializer.Weights_Bitboards_RookTable.Bitboards_RookTable;
-        Bitboards.BishopTable = WeightsInitializer.Weights_Bitboards_BishopTable.Bitboards_BishopTable;
-        Bitboards.RookMagics = WeightsInitializer.Weights_Bitboards_RookTable.RookMagics;
-        Bitboards.BishopMagics = WeightsInitializer.Weights_Bitboards_BishopTable.BishopMagics;
-        Bitboards.LineBB = WeightsInitializer.Weights_Bitboards_LineBB.Bitboards_LineBB;
-        Bitboards.BetweenBB = WeightsInitializer.Weights_Bitboards_BetweenBB.Bitboards_BetweenBB;
-        Position.Zobrist.psq = WeightsInitializer.Weights_Position_Zobrist_psq.Position_Zobrist_psq;
-        Position.Zobrist.enpassant = WeightsInitializer.Weights_Other_Coefficients.Position_Zobrist_enpassant;
-        Position.Zobrist.castling = WeightsInitializer.Weights_Other_Coefficients.Position_Zobrist_castling;
-        Position.Zobrist.side = WeightsInitializer.Weights_Other_Coefficients.Position_Zobrist_side;
-        Position.Zobrist.noPawns = WeightsInitializer.Weights_Other_Coefficients.Position_Zobrist_noPawns;
-        Bitbases.KPKBitbase = WeightsInitializer.Weights_Bitbases_KPKBitbase.Bitbases_KPKBitbase;
-        Search.FutilityMoveCounts = WeightsInitializer.Weights_Other_Coefficients.Search_FutilityMoveCounts;
-        Search.Reductions = WeightsInitializer.Weights_Search_Reductions.Search_Reductions;
-        Pawns.Connected = WeightsInitializer.Weights_Other_Coefficients.Pawns_Connected;
+        WeightsInitializer.init();
     }
 
     public static int[] getBoardPieces(Position position) {
@@ -183,58 +213,83 @@ public class ChessAlgorithm {
 
 
     public static Position getNewPosition() {
+        return getNewPosition(Engine.Default);
+    }
+
+    public static Position getNewPosition(Engine engine) {
         Position pos = new Position();
         Position.StateListPtr[] states = {new Position.StateListPtr()};
         states[0].add(new Position.StateInfo());
 
-        pos.set(UCI.StartFEN, false, states[0].getLast(), thread.Threads.main());
+        pos.set(UCI.StartFEN, false, states[0].getLast(), engine.Threads.main());
         return pos;
     }
 
+    public Position newPosition() {
+        return getNewPosition(engine);
+    }
+
+
+    public static CompletableFuture<Integer> findTheBestMoveAsync(Position position, int gameDifficultyLevel) {
+        return MoveScheduler.get().submit(position, gameDifficultyLevel);
+    }
+
 
     public static int findTheBestMove(Position position, int gameDifficultyLevel) {
+        return findTheBestMove(position.thisThread.engine, position, gameDifficultyLevel);
+    }
+
+    public static int findTheBestMove(Engine engine, Position position, int gameDifficultyLevel) {
+        return findTheBestMove(engine, position, gameDifficultyLevel, System.nanoTime());
+    }
+
+    // The search limits, "deadline" included, count from startNanos (System.nanoTime()), e.g. when the request was
+    // queued rather than when the search starts
+    public static int findTheBestMove(Engine engine, Position position, int gameDifficultyLevel, long startNanos) {
+        position.thisThread = engine.Threads.main();
+
         if (position.st.previous == null || position.st.previous.previous == null) {
             Movegen.MoveList movesList = new Movegen.MoveList(Movegen.GenType.LEGAL, position);
             Map<Integer, Integer> movesMap = new HashMap<>();
             for (int i = 0; i < movesList.size(); i++) {
-                position.do_move(movesList.moveList[i].move);
+                position.do_move(movesList.get(i));
                 movesMap.put(i, Eval.evaluate(position));
-                position.undo_move(movesList.moveList[i].move);
+                position.undo_move(movesList.get(i));
             }
             List<Map.Entry<Integer, Integer>> sortedList = sortIndicesOfMapByValueToAList(movesMap, true);
             int random = new Random().nextInt(6);
-            return movesList.moveList[sortedList.get(random).getKey()].move;
+            return movesList.get(sortedList.get(random).getKey());
         }
         Scanner lineScanner = null;
         switch (gameDifficultyLevel) {
             case EASY: {
                 Movegen.MoveList movesList = new Movegen.MoveList(Movegen.GenType.LEGAL, position);
                 if (movesList.nextIndexOfMoveList == 1) {
-                    return movesList.moveList[0].move;
+                    return movesList.get(0);
                 } else {
                     Map<Integer, Integer> movesMap = new HashMap<>();
                     for (int i = 0; i < movesList.size(); i++) {
-                        position.do_move(movesList.moveList[i].move);
+                        position.do_move(movesList.get(i));
                         movesMap.put(i, Eval.evaluate(position));
-                        position.undo_move(movesList.moveList[i].move);
+                        position.undo_move(movesList.get(i));
                     }
                     List<Map.Entry<Integer, Integer>> sortedList = sortIndicesOfMapByValueToAList(movesMap, true);
                     int random = new Random().nextInt(2);
-                    return movesList.moveList[sortedList.get(random).getKey()].move;
+                    return movesList.get(sortedList.get(random).getKey());
                 }
             }
             case MEDIUM: {
-                lineScanner = new Scanner("depth 4");
+                lineScanner = new Scanner(engine.Options.get("Medium Limits").convertToString());
                 break;
             }
             case HARD: {
-                lineScanner = new Scanner("depth 10");
+                lineScanner = new Scanner(engine.Options.get("Hard Limits").convertToString());
                 break;
             }
         }
         Position.StateListPtr states = new Position.StateListPtr();
         states.add(position.st);
-        return UCI.go(position, lineScanner, states);
+        return UCI.go(engine, position, lineScanner, states, startNanos);
     }
 
 
@@ -311,6 +366,99 @@ public class ChessAlgorithm {
     }
 
 
+    public static class Benchmark {
+
+        public static final String[] Defaults = {
+                "setoption name UCI_Chess960 value false",
+                "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+                "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 10",
+                "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 11",
+                "4rrk1/pp1n3p/3q2pQ/2p1pb2/2PP4/2P3N1/P2B2PP/4RRK1 b - - 7 19",
+                "rq3rk1/ppp2ppp/1bnpb3/3N2B1/3NP3/7P/PPPQ1PP1/2KR3R w - - 7 14 moves d4e6",
+                "r1bq1r1k/1pp1n1pp/1p1p4/4p2Q/4Pp2/1BNP4/PPP2PPP/3R1RK1 w - - 2 14 moves g2g4",
+                "r3r1k1/2p2ppp/p1p1bn2/8/1q2P3/2NPQN2/PPP3PP/R4RK1 b - - 2 15",
+                "r1bbk1nr/pp3p1p/2n5/1N4p1/2Np1B2/8/PPP2PPP/2KR1B1R w kq - 0 13",
+                "r1bq1rk1/ppp1nppp/4n3/3p3Q/3P4/1BP1B3/PP1N2PP/R4RK1 w - - 1 16",
+                "4r1k1/r1q2ppp/ppp2n2/4P3/5Rb1/1N1BQ3/PPP3PP/R5K1 w - - 1 17",
+                "2rqkb1r/ppp2p2/2npb1p1/1N1Nn2p/2P1PP2/8/PP2B1PP/R1BQK2R b KQ - 0 11",
+                "r1bq1r1k/b1p1npp1/p2p3p/1p6/3PP3/1B2NN2/PP3PPP/R2Q1RK1 w - - 1 16",
+                "3r1rk1/p5pp/bpp1pp2/8/q1PP1P2/b3P3/P2NQRPP/1R2B1K1 b - - 6 22",
+                "r1q2rk1/2p1bppp/2Pp4/p6b/Q1PNp3/4B3/PP1R1PPP/2K4R w - - 2 18",
+                "4k2r/1pb2ppp/1p2p3/1R1p4/3P4/2r1PN2/P4PPP/1R4K1 b - - 3 22",
+                "3q2k1/pb3p1p/4pbp1/2r5/PpN2N2/1P2P2P/5PP1/Q2R2K1 b - - 4 26",
+                "6k1/6p1/6Pp/ppp5/3pn2P/1P3K2/1PP2P2/8 b - - 3 54",
+                "3b4/5kp1/1p1p1p1p/pP1PpP1P/P1P1P3/3KN3/8/8 w - - 0 1",
+                "2K5/p7/7P/5pR1/8/5k2/r7/8 w - - 0 1 moves g5g6 f3e3 g6g5 e3f3",
+                "8/6pk/1p6/8/PP3p1p/5P2/4KP1q/3Q4 w - - 0 1",
+                "7k/3p2pp/4q3/8/4Q3/5Kp1/P6b/8 w - - 0 1",
+                "8/2p5/8/2kPKp1p/2p4P/2P5/3P4/8 w - - 0 1",
+                "8/1p3pp1/7p/5P1P/2k3P1/8/2K2P2/8 w - - 0 1",
+                "8/pp2r1k1/2p1p3/3pP2p/1P1P1P1P/P5KR/8/8 w - - 0 1",
+                "8/3p4/p1bk3p/Pp6/1Kp1PpPp/2P2P1P/2P5/5B2 b - - 0 1",
+                "5k2/7R/4P2p/5K2/p1r2P1p/8/8/8 b - - 0 1",
+                "6k1/6p1/P6p/r1N5/5p2/7P/1b3PP1/4R1K1 w - - 0 1",
+                "1r3k2/4q3/2Pp3b/3Bp3/2Q2p2/1p1P2P1/1P2KP2/3N4 w - - 0 1",
+                "6k1/4pp1p/3p2p1/P1pPb3/R7/1r2P1PP/3B1P2/6K1 w - - 0 1",
+                "8/3p3B/5p2/5P2/p7/PP5b/k7/6K1 w - - 0 1",
+                "8/8/8/8/5kp1/P7/8/1K1N4 w - - 0 1",
+                "8/8/8/5N2/8/p7/8/2NK3k w - - 0 1",
+                "8/3k4/8/8/8/4B3/4KB2/2B5 w - - 0 1",
+                "8/8/1P6/5pr1/8/4R3/7k/2K5 w - - 0 1",
+                "8/2p4P/8/kr6/6R1/8/8/1K6 w - - 0 1",
+                "8/8/3P3k/8/1p6/8/1P6/1K3n2 b - - 0 1",
+                "8/R7/2q5/8/6k1/8/1P5p/K6R w - - 0 124",
+                "6k1/3b3r/1p1p4/p1n2p2/1PPNpP1q/P3Q1p1/1R1RB1P1/5K2 b - - 0 1",
+                "r2r1n2/pp2bk2/2p1p2p/3q4/3PN1QP/2P3R1/P4PP1/5RK1 w - - 0 1",
+                "8/8/8/8/8/6k1/6p1/6K1 w - - 0 1",
+                "7k/7P/6K1/8/3B4/8/8/8 b - - 0 1",
+                "setoption name UCI_Chess960 value true",
+                "bbqnnrkr/pppppppp/8/8/8/8/PPPPPPPP/BBQNNRKR w KQkq - 0 1 moves g2g3 d7d5 d2d4 c8h3 c1g5 e8d6 g5e7 f7f6",
+                "setoption name UCI_Chess960 value false"
+        };
+
+
+        // bench [ttSize] [threads] [limit] [fenFile] [limitType]
+        public static List<String> setup_bench(Position current, Scanner is) throws IOException {
+            List<String> fens = new ArrayList<>();
+            List<String> list = new ArrayList<>();
+
+            String ttSize    = is.hasNext() ? is.next() : "16";
+            String threads   = is.hasNext() ? is.next() : "1";
+            String limit     = is.hasNext() ? is.next() : "13";
+            String fenFile   = is.hasNext() ? is.next() : "default";
+            String limitType = is.hasNext() ? is.next() : "depth";
+
+            String go = "go " + limitType + " " + limit;
+
+            if (fenFile.equals("default")) {
+                fens.addAll(Arrays.asList(Defaults));
+            } else if (fenFile.equals("current")) {
+                fens.add(current.fen());
+            } else {
+                for (String fen : Files.readAllLines(Paths.get(fenFile))) {
+                    if (!fen.isEmpty()) {
+                        fens.add(fen);
+                    }
+                }
+            }
+
+            list.add("setoption name Threads value " + threads);
+            list.add("setoption name Hash value " + ttSize);
+            list.add("ucinewgame");
+
+            for (String fen : fens) {
+                if (fen.startsWith("setoption")) {
+                    list.add(fen);
+                } else {
+                    list.add("position fen " + fen);
+                    list.add(go);
+                }
+            }
+            return list;
+        }
+    }
+
+
     public static class Bitbases {
 
         public static final int MAX_INDEX = 2*24*64*64;
@@ -425,23 +573,60 @@ public class ChessAlgorithm {
             return ((KPKBitbase[idx / 32] & (1 << (idx & 0x1F))) != 0);
         }
 
-        public static void init() {
-            int MAX_INDEX = 2*24*64*64;
-            KPKPosition[] db = new KPKPosition[MAX_INDEX];
-            int idx, repeat = 1;
+        public static final int SweepSize = 4096;
 
-            for (idx = 0; idx < MAX_INDEX; ++idx) {
-                db[idx] = new KPKPosition(idx);
+        // Each pass over the database is split over the fork-join pool. A result only ever goes from UNKNOWN to
+        // WIN or DRAW, so chunks seeing each other's updates early or late does not change the final table
+        private static class Sweep extends RecursiveAction {
+            private static final long serialVersionUID = 10003L;
+
+            final KPKPosition[] db;
+            final int begin, end;
+            final boolean build;
+            boolean changed = false;
+
+            Sweep(KPKPosition[] db, int begin, int end, boolean build) {
+                this.db = db;
+                this.begin = begin;
+                this.end = end;
+                this.build = build;
             }
 
-            while (repeat != 0) {
-                repeat = 0;
-                for (idx = 0; idx < MAX_INDEX; ++idx) {
+            @Override
+            protected void compute() {
+                if (end - begin > SweepSize) {
+                    int mid = (begin + end) >>> 1;
+                    Sweep left = new Sweep(db, begin, mid, build), right = new Sweep(db, mid, end, build);
+                    invokeAll(left, right);
+                    changed = left.changed | right.changed;
+                    return;
+                }
+
+                for (int idx = begin; idx < end; ++idx) {
+                    if (build) {
+                        db[idx] = new KPKPosition(idx);
+                        continue;
+                    }
                     KPKPosition kPosition = db[idx];
-                    repeat |= ((kPosition.result == Result.UNKNOWN && ((kPosition.us == Types.Color.WHITE) ? kPosition.classifyWhite(db) : kPosition.classifyBlack(db)) != Result.UNKNOWN) ? 1 : 0);
+                    changed |= (kPosition.result == Result.UNKNOWN && ((kPosition.us == Types.Color.WHITE) ? kPosition.classifyWhite(db) : kPosition.classifyBlack(db)) != Result.UNKNOWN);
                 }
             }
+        }
+
+        public static void init() {
+            int MAX_INDEX = 2*24*64*64;
+            KPKPosition[] db = new KPKPosition[MAX_INDEX];
+            int idx;
 
+            new Sweep(db, 0, MAX_INDEX, true).invoke();
+
+            Sweep sweep;
+            do {
+                sweep = new Sweep(db, 0, MAX_INDEX, false);
+                sweep.invoke();
+            } while (sweep.changed);
+
+            Arrays.fill(KPKBitbase, 0);
             for (idx = 0; idx < MAX_INDEX; ++idx) {
                 if (db[idx].result == Result.WIN) {
                     KPKBitbase[idx / 32] |= 1 << (idx & 0x1F);
@@ -490,42 +675,24 @@ public class ChessAlgorithm {
         public static long[][] PseudoAttacks = new long[Types.PieceType.PIECE_TYPE_NB][Types.Square.SQUARE_NB];
         public static long[][] PawnAttacks = new long[Types.Color.COLOR_NB][Types.Square.SQUARE_NB];
 
-        public static Magic[] RookMagics = new Magic[Types.Square.SQUARE_NB];
-        public static Magic[] BishopMagics = new Magic[Types.Square.SQUARE_NB];
-
-        public static long[] RookTable = new long[0x19000];
-        public static long[] BishopTable = new long[0x1480];
-
-        static {
-            for (int i = 0; i < Types.Square.SQUARE_NB; i++) {
-                RookMagics[i] = new Magic();
-                BishopMagics[i] = new Magic();
-            }
-        }
-
+        // Fancy magic bitboards with the 64-bit lookup, flattened into per-square arrays. Bishop squares come first
+        // (index s) and rook squares after them (index RookMagic + s), and both share the SliderAttacks table
+        public static final int RookMagic = Types.Square.SQUARE_NB;
 
-        public static class Magic {
-            public long mask;
-            public long magic;
-            public long[] attacks;
-            public int shift;
-            public int attacksArrayFirstIndex = 0;
+        public static long[] MagicMasks = new long[2 * Types.Square.SQUARE_NB];
+        public static long[] MagicNumbers = new long[2 * Types.Square.SQUARE_NB];
+        public static int[] MagicShifts = new int[2 * Types.Square.SQUARE_NB];
+        public static int[] MagicOffsets = new int[2 * Types.Square.SQUARE_NB];
 
-            public Magic() {}
+        public static long[] SliderAttacks = new long[0x1480 + 0x19000];
 
-            public Magic(long mask, long magic, long[] attacks, int shift, int attacksArrayFirstIndex) {
-                this.mask = mask;
-                this.magic = magic;
-                this.attacks = attacks;
-                this.shift = shift;
-                this.attacksArrayFirstIndex = attacksArrayFirstIndex;
-            }
+        public static long bishop_attacks(int s, long occupied) {
+            return SliderAttacks[MagicOffsets[s] + (int) (((occupied & MagicMasks[s]) * MagicNumbers[s]) >>> MagicShifts[s])];
+        }
 
-            public int index(long occupied) {
-                int lo = ((int) occupied) & ((int) mask);
-                int hi = ((int) (occupied >>> 32)) & ((int) (mask >>> 32));
-                return (lo * ((int) magic) ^ hi * ((int) (magic >>> 32))) >>> shift;
-            }
+        public static long rook_attacks(int s, long occupied) {
+            int i = RookMagic + s;
+            return SliderAttacks[MagicOffsets[i] + (int) (((occupied & MagicMasks[i]) * MagicNumbers[i]) >>> MagicShifts[i])];
         }
 
         public static boolean more_than_one(long b) {
@@ -548,8 +715,7 @@ public class ChessAlgorithm {
         }
 
         public static long attacks_bb_as_a_function_of_TemplatePieceType(int Pt, int s, long occupied) {
-            Magic m = Pt == Types.PieceType.ROOK ? RookMagics[s] : BishopMagics[s];
-            return m.attacks[m.index(occupied) + m.attacksArrayFirstIndex];
+            return Pt == Types.PieceType.ROOK ? rook_attacks(s, occupied) : bishop_attacks(s, occupied);
         }
 
         public static long attacks_bb(int pt, int s, long occupied) {
@@ -571,6 +737,12 @@ public class ChessAlgorithm {
 
 
         public static void init() {
+            init_squares();
+            init_sliders();
+        }
+
+        // Everything but the slider attacks, which is all that Bitbases.init() needs
+        public static void init_squares() {
             for (int s = Types.Square.SQ_A1; s <= Types.Square.SQ_H8; ++s) {
                 SquareBB[s] = 1L << s;
             }
@@ -634,11 +806,15 @@ public class ChessAlgorithm {
                 }
             }
 
+        }
+
+        public static void init_sliders() {
             int[] RookDirections = {Types.Direction.NORTH, Types.Direction.EAST, Types.Direction.SOUTH, Types.Direction.WEST};
             int[] BishopDirections = {Types.Direction.NORTH_EAST, Types.Direction.SOUTH_EAST, Types.Direction.SOUTH_WEST, Types.Direction.NORTH_WEST};
 
-            init_magics(RookTable, RookMagics, RookDirections);
-            init_magics(BishopTable, BishopMagics, BishopDirections);
+            ForkJoinTask<?> bishops = ForkJoinTask.adapt(() -> init_magics(0, 0, BishopDirections)).fork();
+            init_magics(RookMagic, 0x1480, RookDirections);
+            bishops.join();
 
             for (int s1 = Types.Square.SQ_A1; s1 <= Types.Square.SQ_H8; ++s1) {
                 PseudoAttacks[Types.PieceType.QUEEN][s1] = PseudoAttacks[Types.PieceType.BISHOP][s1] = attacks_bb_as_a_function_of_TemplatePieceType(Types.PieceType.BISHOP, s1, 0);
@@ -672,7 +848,8 @@ public class ChessAlgorithm {
         }
 
 
-        public static void init_magics(long[] table, Magic[] magics, int[] directions) {
+        // Fills the magics of squares base..base+63 and their attacks, from SliderAttacks[offset] on
+        public static void init_magics(int base, int offset, int[] directions) {
             long t1 = System.currentTimeMillis();
             int[][] seeds = {{8977, 44560, 54343, 38998, 5731, 95205, 104912, 17020}, {728, 10316, 55013, 32803, 12281, 15100, 16645, 255}};
 
@@ -691,19 +868,11 @@ public class ChessAlgorithm {
                 long mmask;
                 long mmagic = 0;
                 int mshift;
-                int mattacksArrayFirstIndex;
+                int moffset;
 
-                Magic m = magics[s];
                 mmask  = sliding_attack(directions, s, 0) & ~edges;
-                mshift = 32 - Long.bitCount(mmask);
-
-                if (s == Types.Square.SQ_A1) {
-                    m.attacks = table;
-                    mattacksArrayFirstIndex = 0;
-                } else {
-                    m.attacks = magics[s - 1].attacks;
-                    mattacksArrayFirstIndex = magics[s - 1].attacksArrayFirstIndex + size;
-                }
+                mshift = 64 - Long.bitCount(mmask);
+                moffset = s == Types.Square.SQ_A1 ? offset : MagicOffsets[base + s - 1] + size;
 
                 b = size = 0;
                 do {
@@ -715,29 +884,26 @@ public class ChessAlgorithm {
                 } while (b != 0);
 
 
-                Misc.PRNG rng = new Misc.PRNG(seeds[0][(s >>> 3)]);
+                Misc.PRNG rng = new Misc.PRNG(seeds[Types.Is64Bit ? 1 : 0][(s >>> 3)]);
 
                 for (int i = 0; i < size; ) {
                     for (mmagic = 0; Long.bitCount((mmagic * mmask) >>> 56) < 6; ) {
                         mmagic = rng.sparse_rand();
                     }
                     for (++cnt, i = 0; i < size; ++i) {
-                        long occupied = occupancy[i];
-                        int lo = ((int) occupied) & ((int) mmask);
-                        int hi = ((int) (occupied >>> 32)) & ((int) (mmask >>> 32));
-                        int idx = (lo * ((int) mmagic) ^ hi * ((int) (mmagic >>> 32))) >>> mshift;
+                        int idx = (int) (((occupancy[i] & mmask) * mmagic) >>> mshift);
                         if (epoch[idx] < cnt) {
                             epoch[idx] = cnt;
-                            m.attacks[idx + mattacksArrayFirstIndex] = reference[i];
-                        } else if (m.attacks[idx + mattacksArrayFirstIndex] != reference[i]) {
+                            SliderAttacks[idx + moffset] = reference[i];
+                        } else if (SliderAttacks[idx + moffset] != reference[i]) {
                             break;
                         }
                     }
                 }
-                m.mask = mmask;
-                m.magic = mmagic;
-                m.shift = mshift;
-                m.attacksArrayFirstIndex = mattacksArrayFirstIndex;
+                MagicMasks[base + s] = mmask;
+                MagicNumbers[base + s] = mmagic;
+                MagicShifts[base + s] = mshift;
+                MagicOffsets[base + s] = moffset;
             }
             long t2 = System.currentTimeMillis();
 //            System.out.println((t2 - t1));
@@ -851,6 +1017,16 @@ public class ChessAlgorithm {
 
         public static class Endgames {
 
+            private static Endgames Instance;
+
+            // Built once the Zobrist keys are set, then shared read-only by every thread
+            public static synchronized Endgames instance() {
+                if (Instance == null) {
+                    Instance = new Endgames();
+                }
+                return Instance;
+            }
+
             public Endgames() {
                 add(EndgameCode.KPK, "KPK", new Endgame_KPK(EndgameCode.KPK, Types.Color.WHITE), new Endgame_KPK(EndgameCode.KPK, Types.Color.BLACK));
                 add(EndgameCode.KNNK, "KNNK", new Endgame_KNNK(EndgameCode.KNNK, Types.Color.WHITE), new Endgame_KNNK(EndgameCode.KNNK, Types.Color.BLACK));
@@ -871,8 +1047,30 @@ public class ChessAlgorithm {
                 add(EndgameCode.KRPPKRP, "KRPPKRP", new Endgame_KRPPKRP(EndgameCode.KRPPKRP, Types.Color.WHITE), new Endgame_KRPPKRP(EndgameCode.KRPPKRP, Types.Color.BLACK));
             }
 
-            public static class Map extends HashMap<Long, EndgameBase> {
-                private static final long serialVersionUID = 5577027287308552388L;
+            // Open addressing on the material key, filled by add() and only read afterwards
+            public static class Map {
+                private static final int Capacity = 64;
+
+                private final long[] keys = new long[Capacity];
+                private final EndgameBase[] values = new EndgameBase[Capacity];
+
+                void put(long key, EndgameBase value) {
+                    int i = (int) key & (Capacity - 1);
+                    while (values[i] != null && keys[i] != key) {
+                        i = (i + 1) & (Capacity - 1);
+                    }
+                    keys[i] = key;
+                    values[i] = value;
+                }
+
+                public EndgameBase get(long key) {
+                    for (int i = (int) key & (Capacity - 1); values[i] != null; i = (i + 1) & (Capacity - 1)) {
+                        if (keys[i] == key) {
+                            return values[i];
+                        }
+                    }
+                    return null;
+                }
             }
 
             public class PairOfMaps {
@@ -1547,12 +1745,31 @@ public class ChessAlgorithm {
     }
 
 
+    public static class Engine {
+
+        public static final Engine Default = new Engine();
+
+        public final UCI.OptionsMap Options = new UCI.OptionsMap(this);
+        public final tt.TranspositionTable TT = new tt.TranspositionTable();
+        public final thread.ThreadPool Threads = new thread.ThreadPool(this);
+        public final Timeman.TimeManagement Time = new Timeman.TimeManagement(this);
+        public Search.LimitsType Limits = new Search.LimitsType();
+        public int Contempt = Types.Score.SCORE_ZERO;
+        public volatile PrintStream Output;     // UCI info and bestmove lines, none when null
+
+        public void init() {
+            UCI.init(Options);
+            TT.resize(Options.get("Hash").convertToInteger());
+            Threads.set(Options.get("Threads").convertToInteger());
+            Search.clear(this);
+        }
+    }
+
+
     public static class Eval {
 
         public static final int Tempo = 20;
 
-        public static int Contempt = Types.Score.SCORE_ZERO;
-
         public static int S(int mg, int eg) {
             return ((eg << 16) | (mg & 0xffff));
         }
@@ -1612,7 +1829,69 @@ public class ChessAlgorithm {
 
 
         public static int evaluate(Position pos) {
-            return (new Evaluation(pos)).value() + Tempo;
+            return pos.thisThread.evaluation.reset(pos).value() + Tempo;
+        }
+
+
+        public static final int BatchSize = 256;
+
+        private static final ThreadLocal<BatchScratch> Scratch = ThreadLocal.withInitial(BatchScratch::new);
+
+        // Batches larger than BatchSize are split across the common ForkJoinPool. Each worker evaluates with its own
+        // scratch Evaluation and pawn/material tables, so the threads the positions belong to are not touched.
+        public static void evaluateBatch(Position[] positions, int[] out) {
+            evaluateBatch(new BatchTask(positions, null, 0, positions.length, out));
+        }
+
+        // packedBoards holds Position.PackedLongs longs per board, as written by Position.pack()
+        public static void evaluateBatch(long[] packedBoards, int[] out) {
+            evaluateBatch(new BatchTask(null, packedBoards, 0, packedBoards.length / Position.PackedLongs, out));
+        }
+
+        private static void evaluateBatch(BatchTask task) {
+            if (task.end - task.begin <= BatchSize) {
+                task.compute();
+            } else {
+                ForkJoinPool.commonPool().invoke(task);
+            }
+        }
+
+        private static class BatchScratch {
+            final Evaluation evaluation = new Evaluation(new Pawns.Table(), new Material.Table(), endgame.Endgames.instance());
+            final Position pos = new Position();
+            final Position.StateInfo st = new Position.StateInfo();
+        }
+
+        private static class BatchTask extends RecursiveAction {
+            private static final long serialVersionUID = 10002L;
+
+            final Position[] positions;
+            final long[] packedBoards;
+            final int begin, end;
+            final int[] out;
+
+            BatchTask(Position[] positions, long[] packedBoards, int begin, int end, int[] out) {
+                this.positions = positions;
+                this.packedBoards = packedBoards;
+                this.begin = begin;
+                this.end = end;
+                this.out = out;
+            }
+
+            @Override
+            protected void compute() {
+                if (end - begin > BatchSize) {
+                    int mid = (begin + end) >>> 1;
+                    invokeAll(new BatchTask(positions, packedBoards, begin, mid, out), new BatchTask(positions, packedBoards, mid, end, out));
+                    return;
+                }
+
+                BatchScratch scratch = Scratch.get();
+                for (int i = begin; i < end; i++) {
+                    Position pos = positions != null ? positions[i] : scratch.pos.set(packedBoards, i * Position.PackedLongs, scratch.st, null);
+                    out[i] = scratch.evaluation.reset(pos).value() + Tempo;
+                }
+            }
         }
 
 
@@ -1678,7 +1957,11 @@ public class ChessAlgorithm {
 
         public static class Evaluation {
 
-            public final Position pos;
+            public Position pos;
+            public final Pawns.Table pawnsTable;
+            public final Material.Table materialTable;
+            public final endgame.Endgames endgames;
+            public int contempt;
             public Material.Entry me;
             public Pawns.Entry pe;
             public long[] mobilityArea = new long[Types.Color.COLOR_NB];
@@ -1690,10 +1973,35 @@ public class ChessAlgorithm {
             public int[] kingAttackersCount = new int[Types.Color.COLOR_NB];
             public int[] kingAttackersWeight = new int[Types.Color.COLOR_NB];
             public int[] kingAdjacentZoneAttacksCount = new int[Types.Color.COLOR_NB];
+            public final long[] pinners = new long[1];     // scratch output of slider_blockers() for queens
 
 
             public Evaluation(Position p) {
+                this(p.thisThread.pawnsTable, p.thisThread.materialTable, p.thisThread.endgames);
                 pos = p;
+                contempt = p.thisThread.engine.Contempt;
+            }
+
+            public Evaluation(Pawns.Table pawnsTable, Material.Table materialTable, endgame.Endgames endgames) {
+                this.pawnsTable = pawnsTable;
+                this.materialTable = materialTable;
+                this.endgames = endgames;
+            }
+
+            public Evaluation reset(Position p) {
+                pos = p;
+                contempt = p.thisThread != null ? p.thisThread.engine.Contempt : Types.Score.SCORE_ZERO;
+                mobilityArea[0] = mobilityArea[1] = 0;
+                mobility[0] = mobility[1] = Types.Score.SCORE_ZERO;
+                Arrays.fill(attackedBy[0], 0);
+                Arrays.fill(attackedBy[1], 0);
+                attackedBy2[0] = attackedBy2[1] = 0;
+                kingRing[0] = kingRing[1] = 0;
+                kingAttackersCount[0] = kingAttackersCount[1] = 0;
+                kingAttackersWeight[0] = kingAttackersWeight[1] = 0;
+                kingAdjacentZoneAttacksCount[0] = kingAdjacentZoneAttacksCount[1] = 0;
+                pinners[0] = 0;
+                return this;
             }
 
 
@@ -1794,7 +2102,6 @@ public class ChessAlgorithm {
                     }
 
                     if (Pt == Types.PieceType.QUEEN) {
-                        long[] pinners = {0};
                         if (pos.slider_blockers((pos.byColorBB[Them] & (pos.byTypeBB[Types.PieceType.ROOK] | pos.byTypeBB[Types.PieceType.BISHOP])), s, pinners) != 0) {
                             score -= WeakQueen;
                         }
@@ -1913,8 +2220,7 @@ public class ChessAlgorithm {
                 attackedBy[0][3] = 0;
 
                 while ((s = pl[pl_Index++]) != 64) {
-                    Bitboards.Magic m = Bitboards.BishopMagics[s];
-                    b = m.attacks[m.index(pos.byTypeBB[0] ^ pos.byTypeBB[5]) + m.attacksArrayFirstIndex];
+                    b = Bitboards.bishop_attacks(s, pos.byTypeBB[0] ^ pos.byTypeBB[5]);
 
                     if (((pos.st.blockersForKing[0] & pos.byColorBB[0]) & Bitboards.SquareBB[s]) != 0) {
                         b &= Bitboards.LineBB[pos.pieceList[6][0]][s];
@@ -1951,7 +2257,7 @@ public class ChessAlgorithm {
 
                     score -= BishopPawns * pe.pawns_on_same_color_squares(0, s);
 
-                    if (Bitboards.more_than_one(Center & (m.attacks[m.index(pos.byTypeBB[1]) + m.attacksArrayFirstIndex] | Bitboards.SquareBB[s]))) {
+                    if (Bitboards.more_than_one(Center & (Bitboards.bishop_attacks(s, pos.byTypeBB[1]) | Bitboards.SquareBB[s]))) {
                         score += LongRangedBishop;
                     }
                 }
@@ -1969,8 +2275,7 @@ public class ChessAlgorithm {
                 attackedBy[1][3] = 0;
 
                 while ((s = pl[pl_Index++]) != 64) {
-                    Bitboards.Magic m = Bitboards.BishopMagics[s];
-                    b = m.attacks[m.index(pos.byTypeBB[0] ^ pos.byTypeBB[5]) + m.attacksArrayFirstIndex];
+                    b = Bitboards.bishop_attacks(s, pos.byTypeBB[0] ^ pos.byTypeBB[5]);
 
                     if (((pos.st.blockersForKing[1] & pos.byColorBB[1]) & Bitboards.SquareBB[s]) != 0) {
                         b &= Bitboards.LineBB[pos.pieceList[14][0]][s];
@@ -2007,7 +2312,7 @@ public class ChessAlgorithm {
 
                     score -= BishopPawns * pe.pawns_on_same_color_squares(1, s);
 
-                    if (Bitboards.more_than_one(Center & (m.attacks[m.index(pos.byTypeBB[1]) + m.attacksArrayFirstIndex] | Bitboards.SquareBB[s]))) {
+                    if (Bitboards.more_than_one(Center & (Bitboards.bishop_attacks(s, pos.byTypeBB[1]) | Bitboards.SquareBB[s]))) {
                         score += LongRangedBishop;
                     }
                 }
@@ -2025,8 +2330,7 @@ public class ChessAlgorithm {
                 attackedBy[0][4] = 0;
 
                 while ((s = pl[pl_Index++]) != 64) {
-                    Bitboards.Magic m = Bitboards.RookMagics[s];
-                    b = m.attacks[m.index(pos.byTypeBB[0] ^ pos.byTypeBB[5] ^ (pos.byColorBB[0] & pos.byTypeBB[4])) + m.attacksArrayFirstIndex];
+                    b = Bitboards.rook_attacks(s, pos.byTypeBB[0] ^ pos.byTypeBB[5] ^ (pos.byColorBB[0] & pos.byTypeBB[4]));
 
                     if (((pos.st.blockersForKing[0] & pos.byColorBB[0]) & Bitboards.SquareBB[s]) != 0) {
                         b &= Bitboards.LineBB[pos.pieceList[6][0]][s];
@@ -2076,8 +2380,7 @@ public class ChessAlgorithm {
                 attackedBy[1][4] = 0;
 
                 while ((s = pl[pl_Index++]) != 64) {
-                    Bitboards.Magic m = Bitboards.RookMagics[s];
-                    b = m.attacks[m.index(pos.byTypeBB[0] ^ pos.byTypeBB[5] ^ (pos.byColorBB[1] & pos.byTypeBB[4])) + m.attacksArrayFirstIndex];
+                    b = Bitboards.rook_attacks(s, pos.byTypeBB[0] ^ pos.byTypeBB[5] ^ (pos.byColorBB[1] & pos.byTypeBB[4]));
 
                     if (((pos.st.blockersForKing[1] & pos.byColorBB[1]) & Bitboards.SquareBB[s]) != 0) {
                         b &= Bitboards.LineBB[pos.pieceList[14][0]][s];
@@ -2129,10 +2432,8 @@ public class ChessAlgorithm {
                 attackedBy[0][7] = 0;
 
                 while ((s = pl[pl_Index++]) != 64) {
-                    Bitboards.Magic m = Bitboards.RookMagics[s];
-                    b = m.attacks[m.index(pos.byTypeBB[0]) + m.attacksArrayFirstIndex];
-                    m = Bitboards.BishopMagics[s];
-                    b |= m.attacks[m.index(pos.byTypeBB[0]) + m.attacksArrayFirstIndex];
+                    b = Bitboards.rook_attacks(s, pos.byTypeBB[0]);
+                    b |= Bitboards.bishop_attacks(s, pos.byTypeBB[0]);
 
                     if (((pos.st.blockersForKing[0] & pos.byColorBB[0]) & Bitboards.SquareBB[s]) != 0) {
                         b &= Bitboards.LineBB[pos.pieceList[6][0]][s];
@@ -2155,7 +2456,6 @@ public class ChessAlgorithm {
 
                     score += KingProtector[3] * Bitboards.SquareDistance[s][pos.pieceList[6][0]];
 
-                    long[] pinners = {0};
                     if (pos.slider_blockers((pos.byColorBB[1] & (pos.byTypeBB[4] | pos.byTypeBB[3])), s, pinners) != 0) {
                         score -= WeakQueen;
                     }
@@ -2176,10 +2476,8 @@ public class ChessAlgorithm {
                 attackedBy[1][7] = 0;
 
                 while ((s = pl[pl_Index++]) != 64) {
-                    Bitboards.Magic m = Bitboards.RookMagics[s];
-                    b = m.attacks[m.index(pos.byTypeBB[0]) + m.attacksArrayFirstIndex];
-                    m = Bitboards.BishopMagics[s];
-                    b |= m.attacks[m.index(pos.byTypeBB[0]) + m.attacksArrayFirstIndex];
+                    b = Bitboards.rook_attacks(s, pos.byTypeBB[0]);
+                    b |= Bitboards.bishop_attacks(s, pos.byTypeBB[0]);
 
                     if (((pos.st.blockersForKing[1] & pos.byColorBB[1]) & Bitboards.SquareBB[s]) != 0) {
                         b &= Bitboards.LineBB[pos.pieceList[14][0]][s];
@@ -2202,7 +2500,6 @@ public class ChessAlgorithm {
 
                     score += KingProtector[3] * Bitboards.SquareDistance[s][pos.pieceList[14][0]];
 
-                    long[] pinners = {0};
                     if (pos.slider_blockers((pos.byColorBB[0] & (pos.byTypeBB[4] | pos.byTypeBB[3])), s, pinners) != 0) {
                         score -= WeakQueen;
                     }
@@ -2588,15 +2885,15 @@ public class ChessAlgorithm {
 
 
             public int value() {
-                me = Material.probe(pos);
+                me = Material.probe(pos, materialTable, endgames);
 
                 if (me.specialized_eval_exists()) {
                     return me.evaluate(pos);
                 }
 
-                int score = pos.st.psq + me.imbalance() + Contempt;
+                int score = pos.st.psq + me.imbalance() + contempt;
 
-                pe = Pawns.probe(pos);
+                pe = Pawns.probe(pos, pawnsTable);
                 score += pe.pawns_score();
 
                 int v = (((short) score) + (score >> 16)) / 2;
@@ -2709,138 +3006,171 @@ public class ChessAlgorithm {
         public static endgame.Endgame_KPsK[] ScaleKPsK = {new endgame.Endgame_KPsK(endgame.EndgameCode.KPsK, Types.Color.WHITE), new endgame.Endgame_KPsK(endgame.EndgameCode.KPsK, Types.Color.BLACK)};
         public static endgame.Endgame_KPKP[] ScaleKPKP = {new endgame.Endgame_KPKP(endgame.EndgameCode.KPKP, Types.Color.WHITE), new endgame.Endgame_KPKP(endgame.EndgameCode.KPKP, Types.Color.BLACK)};
 
+        // A cursor on one slot of its Table, moved by Table.get()
         public static class Entry {
-            public long key = 0;
-            public endgame.EndgameBase evaluationFunction;
-            public endgame.EndgameBase[] scalingFunction = new endgame.EndgameBase[Types.Color.COLOR_NB];
+            public final Table table;
+            public int index;
 
-            public int value;
-            public int[] factor = new int[Types.Color.COLOR_NB];
-            public int gamePhase;
+            Entry(Table table) {
+                this.table = table;
+            }
 
             public int imbalance() {
+                int value = table.values[index];
                 return ((value << 16) | (value & 0xffff));
             }
 
             public int game_phase() {
-                return gamePhase;
+                return table.gamePhases[index];
             }
 
             public boolean specialized_eval_exists() {
-                return evaluationFunction != null;
+                return table.evaluationFunctions[index] != null;
             }
 
             public int evaluate(Position pos) {
-                return evaluationFunction.convertToInteger(pos);
+                return table.evaluationFunctions[index].convertToInteger(pos);
             }
 
             public int scale_factor(Position pos, int c) {
-                int sf = scalingFunction[c] != null ? scalingFunction[c].convertToInteger(pos) : Types.ScaleFactor.SCALE_FACTOR_NONE;
-                return sf != Types.ScaleFactor.SCALE_FACTOR_NONE ? sf : factor[c];
+                endgame.EndgameBase scalingFunction = table.scalingFunctions[2 * index + c];
+                int sf = scalingFunction != null ? scalingFunction.convertToInteger(pos) : Types.ScaleFactor.SCALE_FACTOR_NONE;
+                return sf != Types.ScaleFactor.SCALE_FACTOR_NONE ? sf : table.factors[2 * index + c];
             }
         }
 
         public static void resetEntryFields(Entry entry) {
-            entry.key = 0;
-            entry.evaluationFunction = null;
-            for (int i = 0; i < entry.scalingFunction.length; i++) {
-                entry.scalingFunction[i] = null;
-            }
-            entry.value = 0;
-            for (int i = 0; i < entry.factor.length; i++) {
-                entry.factor[i] = 0;
-            }
-            entry.gamePhase = 0;
+            final Table t = entry.table;
+            final int i = entry.index;
+            t.keys[i] = 0;
+            t.evaluationFunctions[i] = null;
+            t.scalingFunctions[2 * i] = t.scalingFunctions[2 * i + 1] = null;
+            t.values[i] = 0;
+            t.factors[2 * i] = t.factors[2 * i + 1] = 0;
+            t.gamePhases[i] = 0;
         }
 
 
+        // Struct of arrays, per color fields at [2 * index + c]
         public static class Table {
-            private int Size = 8192;
-            private List<Entry> table = new ArrayList<Entry>(Size);
+            public static final int DefaultSize = 8192;
+
+            final int mask;
+            final long[] keys;
+            final int[] values, gamePhases, factors;
+            final endgame.EndgameBase[] evaluationFunctions, scalingFunctions;
+            private final Entry entry = new Entry(this);
+
+            // Counted by probe() since the table was allocated. A replace is a miss that overwrote another position.
+            public long probes, hits, replaces;
 
             public Table() {
-                for (int i = 0; i < Size; i++) {
-                    table.add(new Entry());
-                }
+                this(DefaultSize);
+            }
+
+            public Table(int size) {
+                size = Integer.highestOneBit(Math.max(size, 1));
+                mask = size - 1;
+                keys = new long[size];
+                values = new int[size];
+                gamePhases = new int[size];
+                factors = new int[2 * size];
+                evaluationFunctions = new endgame.EndgameBase[size];
+                scalingFunctions = new endgame.EndgameBase[2 * size];
+            }
+
+            public int size() {
+                return mask + 1;
             }
 
             public Entry get(long key) {
-                return table.get((int) (key & (Size - 1)));
+                entry.index = (int) key & mask;
+                return entry;
             }
         }
 
 
         public static Entry probe(Position pos) {
+            return probe(pos, pos.thisThread.materialTable, pos.thisThread.endgames);
+        }
+
+        public static Entry probe(Position pos, Table table, endgame.Endgames endgames) {
             long key = pos.st.materialKey;
-            Entry e = pos.thisThread.materialTable.get(key);
+            Entry e = table.get(key);
+            final int i = e.index;
 
-            if (e.key == key) {
+            table.probes++;
+            if (table.keys[i] == key) {
+                table.hits++;
                 return e;
             }
+            if (table.keys[i] != 0) {
+                table.replaces++;
+            }
 
             resetEntryFields(e);
-            e.key = key;
-            e.factor[Types.Color.WHITE] = e.factor[Types.Color.BLACK] = Types.ScaleFactor.SCALE_FACTOR_NORMAL;
+            table.keys[i] = key;
+            table.factors[2 * i + Types.Color.WHITE] = table.factors[2 * i + Types.Color.BLACK] = Types.ScaleFactor.SCALE_FACTOR_NORMAL;
 
             int npm_w = pos.st.nonPawnMaterial[Types.Color.WHITE];
             int npm_b = pos.st.nonPawnMaterial[Types.Color.BLACK];
             int npm = Math.max(Types.Value.EndgameLimit, Math.min(npm_w + npm_b, Types.Value.MidgameLimit));
 
-            e.gamePhase = ((npm - Types.Value.EndgameLimit) * Types.Phase.PHASE_MIDGAME) / (Types.Value.MidgameLimit - Types.Value.EndgameLimit);
+            table.gamePhases[i] = ((npm - Types.Value.EndgameLimit) * Types.Phase.PHASE_MIDGAME) / (Types.Value.MidgameLimit - Types.Value.EndgameLimit);
 
-            if ((e.evaluationFunction = pos.thisThread.endgames.probe(true, key)) != null) {
+            if ((table.evaluationFunctions[i] = endgames.probe(true, key)) != null) {
                 return e;
             }
 
             for (int c = Types.Color.WHITE; c <= Types.Color.BLACK; ++c) {
                 if (is_KXK(pos, c)) {
-                    e.evaluationFunction = EvaluateKXK[c];
+                    table.evaluationFunctions[i] = EvaluateKXK[c];
                     return e;
                 }
             }
 
             endgame.EndgameBase sf;
 
-            if ((sf = pos.thisThread.endgames.probe(false, key)) != null) {
-                e.scalingFunction[sf.strongSide] = sf;
+            if ((sf = endgames.probe(false, key)) != null) {
+                table.scalingFunctions[2 * i + sf.strongSide] = sf;
                 return e;
             }
 
             for (int c = Types.Color.WHITE; c <= Types.Color.BLACK; ++c) {
                 if (is_KBPsKs(pos, c)) {
-                    e.scalingFunction[c] = ScaleKBPsK[c];
+                    table.scalingFunctions[2 * i + c] = ScaleKBPsK[c];
                 } else if (is_KQKRPs(pos, c)) {
-                    e.scalingFunction[c] = ScaleKQKRPs[c];
+                    table.scalingFunctions[2 * i + c] = ScaleKQKRPs[c];
                 }
             }
 
             if (npm_w + npm_b == Types.Value.VALUE_ZERO && pos.byTypeBB[Types.PieceType.PAWN] != 0) {
                 if (pos.pieceCount[((Types.Color.BLACK << 3) + Types.PieceType.PAWN)] == 0) {
-                    e.scalingFunction[Types.Color.WHITE] = ScaleKPsK[Types.Color.WHITE];
+                    table.scalingFunctions[2 * i + Types.Color.WHITE] = ScaleKPsK[Types.Color.WHITE];
                 } else if (pos.pieceCount[((Types.Color.WHITE << 3) + Types.PieceType.PAWN)] == 0) {
-                    e.scalingFunction[Types.Color.BLACK] = ScaleKPsK[Types.Color.BLACK];
+                    table.scalingFunctions[2 * i + Types.Color.BLACK] = ScaleKPsK[Types.Color.BLACK];
                 } else if (pos.pieceCount[((Types.Color.WHITE << 3) + Types.PieceType.PAWN)] == 1 && pos.pieceCount[((Types.Color.BLACK << 3) + Types.PieceType.PAWN)] == 1) {
-                    e.scalingFunction[Types.Color.WHITE] = ScaleKPKP[Types.Color.WHITE];
-                    e.scalingFunction[Types.Color.BLACK] = ScaleKPKP[Types.Color.BLACK];
+                    table.scalingFunctions[2 * i + Types.Color.WHITE] = ScaleKPKP[Types.Color.WHITE];
+                    table.scalingFunctions[2 * i + Types.Color.BLACK] = ScaleKPKP[Types.Color.BLACK];
                 }
             }
 
             if (pos.pieceCount[((Types.Color.WHITE << 3) + Types.PieceType.PAWN)] == 0 && npm_w - npm_b <= Types.Value.BishopValueMg) {
-                e.factor[Types.Color.WHITE] = npm_w < Types.Value.RookValueMg ? Types.ScaleFactor.SCALE_FACTOR_DRAW :
+                table.factors[2 * i + Types.Color.WHITE] = npm_w < Types.Value.RookValueMg ? Types.ScaleFactor.SCALE_FACTOR_DRAW :
                         npm_b <= Types.Value.BishopValueMg ? 4 : 14;
             }
 
             if (pos.pieceCount[((Types.Color.BLACK << 3) + Types.PieceType.PAWN)] == 0 && npm_b - npm_w <= Types.Value.BishopValueMg) {
-                e.factor[Types.Color.BLACK] = npm_b < Types.Value.RookValueMg ? Types.ScaleFactor.SCALE_FACTOR_DRAW :
+                table.factors[2 * i + Types.Color.BLACK] = npm_b < Types.Value.RookValueMg ? Types.ScaleFactor.SCALE_FACTOR_DRAW :
                         npm_w <= Types.Value.BishopValueMg ? 4 : 14;
             }
 
             if (pos.pieceCount[((Types.Color.WHITE << 3) + Types.PieceType.PAWN)] == 1 && npm_w - npm_b <= Types.Value.BishopValueMg) {
-                e.factor[Types.Color.WHITE] = Types.ScaleFactor.SCALE_FACTOR_ONEPAWN;
+                table.factors[2 * i + Types.Color.WHITE] = Types.ScaleFactor.SCALE_FACTOR_ONEPAWN;
             }
 
             if (pos.pieceCount[((Types.Color.BLACK << 3) + Types.PieceType.PAWN)] == 1 && npm_b - npm_w <= Types.Value.BishopValueMg) {
-                e.factor[Types.Color.BLACK] = Types.ScaleFactor.SCALE_FACTOR_ONEPAWN;
+                table.factors[2 * i + Types.Color.BLACK] = Types.ScaleFactor.SCALE_FACTOR_ONEPAWN;
             }
 
             final int[][] PieceCount = {
@@ -2849,7 +3179,7 @@ public class ChessAlgorithm {
                     {(pos.pieceCount[((Types.Color.BLACK << 3) + Types.PieceType.BISHOP)] > 1 ? 1 : 0), pos.pieceCount[((Types.Color.BLACK << 3) + Types.PieceType.PAWN)], pos.pieceCount[((Types.Color.BLACK << 3) + Types.PieceType.KNIGHT)],
                             pos.pieceCount[((Types.Color.BLACK << 3) + Types.PieceType.BISHOP)], pos.pieceCount[((Types.Color.BLACK << 3) + Types.PieceType.ROOK)], pos.pieceCount[((Types.Color.BLACK << 3) + Types.PieceType.QUEEN)], 0, 0}};
 
-            e.value = (imbalance_as_a_function_of_TemplateColor(Types.Color.WHITE, PieceCount) - imbalance_as_a_function_of_TemplateColor(Types.Color.BLACK, PieceCount)) / 16;
+            table.values[i] = (imbalance_as_a_function_of_TemplateColor(Types.Color.WHITE, PieceCount) - imbalance_as_a_function_of_TemplateColor(Types.Color.BLACK, PieceCount)) / 16;
             return e;
         }
 
@@ -2919,6 +3249,13 @@ public class ChessAlgorithm {
                 return (rand64() & rand64() & rand64());
             }
         }
+
+
+        public static final String Authors = "The BOMG-Stockfish9 development team (derived from Stockfish 9)";
+
+        public static String engine_info() {
+            return "BOMG-Stockfish9";
+        }
     }
 
 
@@ -2933,29 +3270,27 @@ public class ChessAlgorithm {
             public static final int LEGAL = 5;
         }
 
+        // An ExtMove is packed into a long: the move in the low 32 bits and its ordering value in the high 32 bits
         public static class ExtMove {
-            public int move;
-            public int value;
-
-            public ExtMove(int move) {
-                this.move = move;
+            public static long make(int move, int value) {
+                return ((long) value << 32) | (move & 0xFFFFFFFFL);
             }
 
-            public int convertToMove() {
-                return move;
+            public static int move(long extMove) {
+                return (int) extMove;
             }
 
-            public void operatorAssignment(int m) {
-                move = m;
+            public static int value(long extMove) {
+                return (int) (extMove >> 32);
             }
 
-            public String toString() {
-                return UCI.move(move, false);
+            public static String toString(long extMove) {
+                return UCI.move(move(extMove), false);
             }
         }
 
         public static class MoveList {
-            public ExtMove[] moveList = new ExtMove[Types.MAX_MOVES];
+            public long[] moveList = new long[Types.MAX_MOVES];
             private int nextIndexOfMoveList = 0;
 
             public MoveList(int T, Position pos) {
@@ -2968,9 +3303,13 @@ public class ChessAlgorithm {
                 return nextIndexOfMoveList;
             }
 
+            public int get(int i) {
+                return ExtMove.move(moveList[i]);
+            }
+
             public boolean contains(int move) {
                 for (int i = 0; i < nextIndexOfMoveList; i++) {
-                    if (move == moveList[i].convertToMove()) {
+                    if (move == ExtMove.move(moveList[i])) {
                         return true;
                     }
                 }
@@ -2981,7 +3320,7 @@ public class ChessAlgorithm {
                 if (moveList != null) {
                     Set<Integer> squares = new HashSet<>();
                     for (int i = 0; i < nextIndexOfMoveList; i++) {
-                        squares.add(Types.from_sq(moveList[i].move));
+                        squares.add(Types.from_sq(ExtMove.move(moveList[i])));
                     }
                     return squares;
                 } else {
@@ -2993,7 +3332,7 @@ public class ChessAlgorithm {
                 if (moveList != null) {
                     Set<Integer> squares = new HashSet<>();
                     for (int i = 0; i < nextIndexOfMoveList; i++) {
-                        int move = moveList[i].move;
+                        int move = ExtMove.move(moveList[i]);
                         if (piece == Types.from_sq(move)) {
                             if (Types.moveType(move) == Types.MoveType.CASTLING) {
                                 if (Types.to_sq(move) > Types.from_sq(move)) {
@@ -3015,8 +3354,8 @@ public class ChessAlgorithm {
             public int getMoveByFromAndToSquares(int from, int to) {
                 if (moveList != null) {
                     for (int i = 0; i < nextIndexOfMoveList; i++) {
-                        if (from == Types.from_sq(moveList[i].move) && to == Types.to_sq(moveList[i].move)) {
-                            return moveList[i].move;
+                        if (from == Types.from_sq(ExtMove.move(moveList[i])) && to == Types.to_sq(ExtMove.move(moveList[i]))) {
+                            return ExtMove.move(moveList[i]);
                         }
                     }
                 }
@@ -3025,7 +3364,7 @@ public class ChessAlgorithm {
         }
 
 
-        public static int generate_castling(int Cr, boolean Checks, boolean Chess960, Position pos, ExtMove[] moveList, int nextIndexOfMoveList, int us) {
+        public static int generate_castling(int Cr, boolean Checks, boolean Chess960, Position pos, long[] moveList, int nextIndexOfMoveList, int us) {
             final boolean KingSide = (Cr == Types.CastlingRight.WHITE_OO || Cr == Types.CastlingRight.BLACK_OO);
 
             if (((pos.byTypeBB[Types.PieceType.ALL_PIECES] & pos.castlingPath[Cr]) != 0) || (pos.st.castlingRights & Cr) == 0) {
@@ -3056,31 +3395,31 @@ public class ChessAlgorithm {
                 return nextIndexOfMoveList;
             }
 
-            moveList[nextIndexOfMoveList++] = new ExtMove(m);
+            moveList[nextIndexOfMoveList++] = m;
             return nextIndexOfMoveList;
         }
 
 
-        public static int make_promotions(int Type, int D, ExtMove[] moveList, int nextIndexOfMoveList, int to, int ksq) {
+        public static int make_promotions(int Type, int D, long[] moveList, int nextIndexOfMoveList, int to, int ksq) {
             if (Type == GenType.CAPTURES || Type == GenType.EVASIONS || Type == GenType.NON_EVASIONS) {
-                moveList[nextIndexOfMoveList++] = new ExtMove((Types.MoveType.PROMOTION + ((Types.PieceType.QUEEN - Types.PieceType.KNIGHT) << 12) + ((to - D) << 6) + to));
+                moveList[nextIndexOfMoveList++] = (Types.MoveType.PROMOTION + ((Types.PieceType.QUEEN - Types.PieceType.KNIGHT) << 12) + ((to - D) << 6) + to);
             }
 
             if (Type == GenType.QUIETS || Type == GenType.EVASIONS || Type == GenType.NON_EVASIONS) {
-                moveList[nextIndexOfMoveList++] = new ExtMove((Types.MoveType.PROMOTION + ((Types.PieceType.ROOK - Types.PieceType.KNIGHT) << 12) + ((to - D) << 6) + to));
-                moveList[nextIndexOfMoveList++] = new ExtMove((Types.MoveType.PROMOTION + ((Types.PieceType.BISHOP - Types.PieceType.KNIGHT) << 12) + ((to - D) << 6) + to));
-                moveList[nextIndexOfMoveList++] = new ExtMove((Types.MoveType.PROMOTION + ((Types.PieceType.KNIGHT - Types.PieceType.KNIGHT) << 12) + ((to - D) << 6) + to));
+                moveList[nextIndexOfMoveList++] = (Types.MoveType.PROMOTION + ((Types.PieceType.ROOK - Types.PieceType.KNIGHT) << 12) + ((to - D) << 6) + to);
+                moveList[nextIndexOfMoveList++] = (Types.MoveType.PROMOTION + ((Types.PieceType.BISHOP - Types.PieceType.KNIGHT) << 12) + ((to - D) << 6) + to);
+                moveList[nextIndexOfMoveList++] = (Types.MoveType.PROMOTION + ((Types.PieceType.KNIGHT - Types.PieceType.KNIGHT) << 12) + ((to - D) << 6) + to);
             }
 
             if (Type == GenType.QUIET_CHECKS && (Bitboards.PseudoAttacks[Types.PieceType.KNIGHT][to] & Bitboards.SquareBB[ksq]) != 0) {
-                moveList[nextIndexOfMoveList++] = new ExtMove((Types.MoveType.PROMOTION + ((Types.PieceType.KNIGHT - Types.PieceType.KNIGHT) << 12) + ((to - D) << 6) + to));
+                moveList[nextIndexOfMoveList++] = (Types.MoveType.PROMOTION + ((Types.PieceType.KNIGHT - Types.PieceType.KNIGHT) << 12) + ((to - D) << 6) + to);
             }
 
             return nextIndexOfMoveList;
         }
 
 
-        public static int generate_pawn_moves(int Us, int Type, Position pos, ExtMove[] moveList, int nextIndexOfMoveList, long target) {
+        public static int generate_pawn_moves(int Us, int Type, Position pos, long[] moveList, int nextIndexOfMoveList, long target) {
             final int Them = (Us == Types.Color.WHITE ? Types.Color.BLACK : Types.Color.WHITE);
             final long TRank8BB = (Us == Types.Color.WHITE ? Bitboards.Rank8BB : Bitboards.Rank1BB);
             final long TRank7BB = (Us == Types.Color.WHITE ? Bitboards.Rank7BB : Bitboards.Rank2BB);
@@ -3127,13 +3466,13 @@ public class ChessAlgorithm {
                 while (b1 != 0) {
                     int to = Long.numberOfTrailingZeros(b1);
                     b1 &= b1 - 1;
-                    moveList[nextIndexOfMoveList++] = new ExtMove((((to - Up) << 6) + to));
+                    moveList[nextIndexOfMoveList++] = (((to - Up) << 6) + to);
                 }
 
                 while (b2 != 0) {
                     int to = Long.numberOfTrailingZeros(b2);
                     b2 &= b2 - 1;
-                    moveList[nextIndexOfMoveList++] = new ExtMove((((to - Up - Up) << 6) + to));
+                    moveList[nextIndexOfMoveList++] = (((to - Up - Up) << 6) + to);
                 }
             }
 
@@ -3175,13 +3514,13 @@ public class ChessAlgorithm {
                 while (b1 != 0) {
                     int to = Long.numberOfTrailingZeros(b1);
                     b1 &= b1 - 1;
-                    moveList[nextIndexOfMoveList++] = new ExtMove((((to - Right) << 6) + to));
+                    moveList[nextIndexOfMoveList++] = (((to - Right) << 6) + to);
                 }
 
                 while (b2 != 0) {
                     int to = Long.numberOfTrailingZeros(b2);
                     b2 &= b2 - 1;
-                    moveList[nextIndexOfMoveList++] = new ExtMove((((to - Left) << 6) + to));
+                    moveList[nextIndexOfMoveList++] = (((to - Left) << 6) + to);
                 }
 
                 if (pos.st.epSquare != Types.Square.SQ_NONE) {
@@ -3192,7 +3531,7 @@ public class ChessAlgorithm {
                     b1 = pawnsNotOn7 & Bitboards.PawnAttacks[Them][pos.st.epSquare];
 
                     while (b1 != 0) {
-                        moveList[nextIndexOfMoveList++] = new ExtMove((Types.MoveType.ENPASSANT + (Long.numberOfTrailingZeros(b1) << 6) + pos.st.epSquare));
+                        moveList[nextIndexOfMoveList++] = (Types.MoveType.ENPASSANT + (Long.numberOfTrailingZeros(b1) << 6) + pos.st.epSquare);
                         b1 &= b1 - 1;
                     }
                 }
@@ -3202,7 +3541,7 @@ public class ChessAlgorithm {
         }
 
 
-        public static int generate_moves(int Pt, boolean Checks, Position pos, ExtMove[] moveList, int nextIndexOfMoveList, int us, long target) {
+        public static int generate_moves(int Pt, boolean Checks, Position pos, long[] moveList, int nextIndexOfMoveList, int us, long target) {
             final int[] pl = pos.pieceList[((us << 3) + Pt)];
             int pl_Index = 0;
 
@@ -3225,7 +3564,7 @@ public class ChessAlgorithm {
                 }
 
                 while (b != 0) {
-                    moveList[nextIndexOfMoveList++] = new ExtMove(((from << 6) + Long.numberOfTrailingZeros(b)));
+                    moveList[nextIndexOfMoveList++] = ((from << 6) + Long.numberOfTrailingZeros(b));
                     b &= b - 1;
                 }
             }
@@ -3234,7 +3573,7 @@ public class ChessAlgorithm {
         }
 
 
-        public static int generate_all(int Us, int Type, Position pos, ExtMove[] moveList, int nextIndexOfMoveList, long target) {
+        public static int generate_all(int Us, int Type, Position pos, long[] moveList, int nextIndexOfMoveList, long target) {
             final boolean Checks = Type == GenType.QUIET_CHECKS;
 
             nextIndexOfMoveList = generate_pawn_moves(Us, Type, pos, moveList, nextIndexOfMoveList, target);
@@ -3247,7 +3586,7 @@ public class ChessAlgorithm {
                 int ksq = pos.pieceList[((Us << 3) + Types.PieceType.KING)][0];
                 long b = pos.attacks_from_as_a_function_of_TemplatePieceType(Types.PieceType.KING, ksq) & target;
                 while (b != 0) {
-                    moveList[nextIndexOfMoveList++] = new ExtMove(((ksq << 6) + Long.numberOfTrailingZeros(b)));
+                    moveList[nextIndexOfMoveList++] = ((ksq << 6) + Long.numberOfTrailingZeros(b));
                     b &= b - 1;
                 }
             }
@@ -3266,7 +3605,7 @@ public class ChessAlgorithm {
         }
 
 
-        public static int generate_as_a_function_of_TemplateGenType(int Type, Position pos, ExtMove[] moveList, int nextIndexOfMoveList) {
+        public static int generate_as_a_function_of_TemplateGenType(int Type, Position pos, long[] moveList, int nextIndexOfMoveList) {
             int us = pos.sideToMove;
 
             long target = Type == GenType.CAPTURES		?	pos.byColorBB[us ^ Types.Color.BLACK] :
@@ -3278,7 +3617,7 @@ public class ChessAlgorithm {
         }
 
 
-        public static int generate_as_a_function_of_TemplateQUIET_CHECKS(Position pos, ExtMove[] moveList, int nextIndexOfMoveList) {
+        public static int generate_as_a_function_of_TemplateQUIET_CHECKS(Position pos, long[] moveList, int nextIndexOfMoveList) {
             int us = pos.sideToMove;
             long dc = (pos.st.blockersForKing[(pos.sideToMove ^ Types.Color.BLACK)] & pos.byColorBB[pos.sideToMove]);
 
@@ -3298,7 +3637,7 @@ public class ChessAlgorithm {
                 }
 
                 while (b != 0) {
-                    moveList[nextIndexOfMoveList++] = new ExtMove(((from << 6) + Long.numberOfTrailingZeros(b)));
+                    moveList[nextIndexOfMoveList++] = ((from << 6) + Long.numberOfTrailingZeros(b));
                     b &= b - 1;
                 }
             }
@@ -3308,7 +3647,7 @@ public class ChessAlgorithm {
         }
 
 
-        public static int generate_as_a_function_of_TemplateEVASIONS(Position pos, ExtMove[] moveList, int nextIndexOfMoveList) {
+        public static int generate_as_a_function_of_TemplateEVASIONS(Position pos, long[] moveList, int nextIndexOfMoveList) {
             int us = pos.sideToMove;
             int ksq = pos.pieceList[((us << 3) + Types.PieceType.KING)][0];
             long sliderAttacks = 0;
@@ -3322,7 +3661,7 @@ public class ChessAlgorithm {
 
             long b = pos.attacks_from_as_a_function_of_TemplatePieceType(Types.PieceType.KING, ksq) & ~pos.byColorBB[us] & ~sliderAttacks;
             while (b != 0) {
-                moveList[nextIndexOfMoveList++] = new ExtMove(((ksq << 6) + Long.numberOfTrailingZeros(b)));
+                moveList[nextIndexOfMoveList++] = ((ksq << 6) + Long.numberOfTrailingZeros(b));
                 b &= b - 1;
             }
 
@@ -3338,7 +3677,7 @@ public class ChessAlgorithm {
         }
 
 
-        public static int generate_as_a_function_of_TemplateLEGAL(Position pos, ExtMove[] moveList, int nextIndexOfMoveList) {
+        public static int generate_as_a_function_of_TemplateLEGAL(Position pos, long[] moveList, int nextIndexOfMoveList) {
             long pinned = (pos.st.blockersForKing[pos.sideToMove] & pos.byColorBB[pos.sideToMove]);
             int ksq = pos.pieceList[((pos.sideToMove << 3) + Types.PieceType.KING)][0];
             int cur = nextIndexOfMoveList;
@@ -3347,9 +3686,9 @@ public class ChessAlgorithm {
                     generate_as_a_function_of_TemplateGenType(GenType.NON_EVASIONS, pos, moveList, nextIndexOfMoveList);
 
             while (cur != nextIndexOfMoveList) {
-                if ((pinned != 0 || ((moveList[cur].convertToMove() >>> 6) & 0x3F) == ksq || (moveList[cur].convertToMove() & (3 << 14)) == Types.MoveType.ENPASSANT) &&
-                        !pos.legal(moveList[cur].convertToMove())) {
-                    moveList[cur].move = moveList[--nextIndexOfMoveList].move;
+                if ((pinned != 0 || ((ExtMove.move(moveList[cur]) >>> 6) & 0x3F) == ksq || (ExtMove.move(moveList[cur]) & (3 << 14)) == Types.MoveType.ENPASSANT) &&
+                        !pos.legal(ExtMove.move(moveList[cur]))) {
+                    moveList[cur] = moveList[--nextIndexOfMoveList];
                 } else {
                     ++cur;
                 }
@@ -3465,18 +3804,18 @@ public class ChessAlgorithm {
         }
 
 
-        public static void partial_insertion_sort(Movegen.ExtMove[] extMovesArray, int begin, int end, int limit) {
+        public static void partial_insertion_sort(long[] extMovesArray, int begin, int end, int limit) {
             if (begin >= end) {
                 return;
             }
 
             int sortedEnd = begin;
             for (int p = begin + 1; p < end; ++p) {
-                if (extMovesArray[p].value >= limit) {
-                    Movegen.ExtMove tmp = extMovesArray[p];
+                if (Movegen.ExtMove.value(extMovesArray[p]) >= limit) {
+                    long tmp = extMovesArray[p];
                     int q;
                     extMovesArray[p] = extMovesArray[++sortedEnd];
-                    for (q = sortedEnd; q != begin && extMovesArray[q - 1].value < tmp.value; --q) {
+                    for (q = sortedEnd; q != begin && Movegen.ExtMove.value(extMovesArray[q - 1]) < Movegen.ExtMove.value(tmp); --q) {
                         extMovesArray[q] = extMovesArray[q - 1];
                     }
                     extMovesArray[q] = tmp;
@@ -3485,26 +3824,28 @@ public class ChessAlgorithm {
         }
 
 
-        public static int pick_best(Movegen.ExtMove[] extMovesArray, int begin, int end) {
+        public static int pick_best(long[] extMovesArray, int begin, int end) {
             if (begin >= end) {
                 return 0;
             }
 
             int maxElmentIndex = begin;
             for (int i = (begin + 1); i < end; i++) {
-                if (extMovesArray[maxElmentIndex].value < extMovesArray[i].value) {
+                if (Movegen.ExtMove.value(extMovesArray[maxElmentIndex]) < Movegen.ExtMove.value(extMovesArray[i])) {
                     maxElmentIndex = i;
                 }
             }
 
-            Movegen.ExtMove temp = extMovesArray[begin];
+            long temp = extMovesArray[begin];
             extMovesArray[begin] = extMovesArray[maxElmentIndex];
             extMovesArray[maxElmentIndex] = temp;
 
-            return extMovesArray[begin].move;
+            return Movegen.ExtMove.move(extMovesArray[begin]);
         }
 
 
+        // One picker per ply is reused by every node searched at that ply, re-initialised by
+        // the reset() overload for the kind of search: main search, quiescence or ProbCut
         public static class MovePicker {
             private Position pos;
             private ButterflyHistory mainHistory;
@@ -3512,7 +3853,7 @@ public class ChessAlgorithm {
             private PieceToHistory[] contHistory;
             private int ttMove;
             private int countermove;
-            private int[] killers = new int[2];
+            private final int[] killers = new int[2];
             private int cur;
             private int endMoves;
             private int endBadCaptures;
@@ -3520,25 +3861,30 @@ public class ChessAlgorithm {
             private int recaptureSquare;
             private int threshold;
             private int depth;
-            private Movegen.ExtMove[] moves = new Movegen.ExtMove[Types.MAX_MOVES];
+            private long[] moves;
 
-            public MovePicker(Position p, int ttm, int d, ButterflyHistory mh, CapturePieceToHistory cph, PieceToHistory[] ch, int cm, int[] killers_p) {
+            public MovePicker reset(Position p, int ttm, int d, ButterflyHistory mh, CapturePieceToHistory cph, PieceToHistory[] ch, int cm, int[] killers_p, long[] movesBuffer) {
                 pos = p;
+                moves = movesBuffer;
                 mainHistory = mh;
                 captureHistory = cph;
                 contHistory = ch;
                 countermove = cm;
-                killers = new int[] {killers_p[0], killers_p[1]};
+                killers[0] = killers_p[0];
+                killers[1] = killers_p[1];
                 depth = d;
                 stage = pos.st.checkersBB != 0 ? Stages.EVASION : Stages.MAIN_SEARCH;
                 ttMove = ttm != 0 && pos.pseudo_legal(ttm) ? ttm : Types.Move.MOVE_NONE;
                 stage += (ttMove == Types.Move.MOVE_NONE ? 1 : 0);
+                return this;
             }
 
-            public MovePicker(Position p, int ttm, int d, ButterflyHistory mh, CapturePieceToHistory cph, int s) {
+            public MovePicker reset(Position p, int ttm, int d, ButterflyHistory mh, CapturePieceToHistory cph, int s, long[] movesBuffer) {
                 pos = p;
+                moves = movesBuffer;
                 mainHistory = mh;
                 captureHistory = cph;
+                ttMove = Types.Move.MOVE_NONE;
                 if (pos.st.checkersBB != 0) {
                     stage = Stages.EVASION;
                 } else if (d > Types.Depth.DEPTH_QS_NO_CHECKS) {
@@ -3548,39 +3894,44 @@ public class ChessAlgorithm {
                 } else {
                     stage = Stages.QSEARCH_RECAPTURES;
                     recaptureSquare = s;
-                    return;
+                    return this;
                 }
                 ttMove = ttm != 0 && pos.pseudo_legal(ttm) ? ttm : Types.Move.MOVE_NONE;
                 stage += (ttMove == Types.Move.MOVE_NONE ? 1 : 0);
+                return this;
             }
 
-            public MovePicker(Position p, int ttm, int th, CapturePieceToHistory cph) {
+            public MovePicker reset(Position p, int ttm, int th, CapturePieceToHistory cph, long[] movesBuffer) {
                 pos = p;
+                moves = movesBuffer;
                 captureHistory = cph;
                 threshold = th;
                 stage = Stages.PROBCUT;
                 ttMove = ttm != 0 && pos.pseudo_legal(ttm) && pos.capture(ttm) && pos.see_ge(ttm, threshold) ? ttm : Types.Move.MOVE_NONE;
                 stage += (ttMove == Types.Move.MOVE_NONE ? 1 : 0);
+                return this;
             }
 
             public void score(int Type) {
                 for (int i = cur; i < endMoves; i++) {
-                    Movegen.ExtMove m = moves[i];
+                    int move = Movegen.ExtMove.move(moves[i]);
+                    int value;
                     if (Type == Movegen.GenType.CAPTURES) {
-                        m.value = PSQT.PieceValue[Types.Phase.MG][pos.board[(m.move & 0x3F)]] +
-                                captureHistory.array[pos.board[((m.move >>> 6) & 0x3F)]][(m.move & 0x3F)][(pos.board[(m.move & 0x3F)] & 7)];
+                        value = PSQT.PieceValue[Types.Phase.MG][pos.board[(move & 0x3F)]] +
+                                captureHistory.array[pos.board[((move >>> 6) & 0x3F)]][(move & 0x3F)][(pos.board[(move & 0x3F)] & 7)];
                     } else if (Type == Movegen.GenType.QUIETS) {
-                        m.value = mainHistory.array[pos.sideToMove][(m.move & 0xFFF)] +
-                                contHistory[0].array[pos.board[((m.move >>> 6) & 0x3F)]][(m.move & 0x3F)] +
-                                contHistory[1].array[pos.board[((m.move >>> 6) & 0x3F)]][(m.move & 0x3F)] +
-                                contHistory[3].array[pos.board[((m.move >>> 6) & 0x3F)]][(m.move & 0x3F)];
+                        value = mainHistory.array[pos.sideToMove][(move & 0xFFF)] +
+                                contHistory[0].array[pos.board[((move >>> 6) & 0x3F)]][(move & 0x3F)] +
+                                contHistory[1].array[pos.board[((move >>> 6) & 0x3F)]][(move & 0x3F)] +
+                                contHistory[3].array[pos.board[((move >>> 6) & 0x3F)]][(move & 0x3F)];
                     } else {
-                        if (pos.capture(m.move)) {
-                            m.value =  PSQT.PieceValue[Types.Phase.MG][pos.board[(m.move & 0x3F)]] - (pos.board[((m.move >>> 6) & 0x3F)] & 7);
+                        if (pos.capture(move)) {
+                            value =  PSQT.PieceValue[Types.Phase.MG][pos.board[(move & 0x3F)]] - (pos.board[((move >>> 6) & 0x3F)] & 7);
                         } else {
-                            m.value = mainHistory.array[pos.sideToMove][(m.move & 0xFFF)] - (1 << 28);
+                            value = mainHistory.array[pos.sideToMove][(move & 0xFFF)] - (1 << 28);
                         }
                     }
+                    moves[i] = Movegen.ExtMove.make(move, value);
                 }
             }
 
@@ -3603,10 +3954,11 @@ public class ChessAlgorithm {
                         while (cur < endMoves) {
                             move = pick_best(moves, cur++, endMoves);
                             if (move != ttMove) {
-                                if (pos.see_ge(move, -55 * moves[cur - 1].value / 1024)) {
+                                if (pos.see_ge(move, -55 * Movegen.ExtMove.value(moves[cur - 1]) / 1024)) {
                                     return move;
                                 }
-                                moves[endBadCaptures++].move = move;
+                                moves[endBadCaptures] = Movegen.ExtMove.make(move, Movegen.ExtMove.value(moves[endBadCaptures]));
+                                endBadCaptures++;
                             }
                         }
                         ++stage;
@@ -3637,8 +3989,8 @@ public class ChessAlgorithm {
                         ++stage; /* fallthrough */
                     }
                     case Stages.QUIET: {
-                        while (cur < endMoves && (!skipQuiets || moves[cur].value >= Types.Value.VALUE_ZERO)) {
-                            move = moves[cur++].move;
+                        while (cur < endMoves && (!skipQuiets || Movegen.ExtMove.value(moves[cur]) >= Types.Value.VALUE_ZERO)) {
+                            move = Movegen.ExtMove.move(moves[cur++]);
                             if (move != ttMove && move != killers[0] && move != killers[1] && move != countermove) {
                                 return move;
                             }
@@ -3648,7 +4000,7 @@ public class ChessAlgorithm {
                     }
                     case Stages.BAD_CAPTURES: {
                         if (cur < endBadCaptures) {
-                            return moves[cur++].move;
+                            return Movegen.ExtMove.move(moves[cur++]);
                         }
                         break;
                     }
@@ -3704,7 +4056,7 @@ public class ChessAlgorithm {
                     }
                     case Stages.QCHECKS: {
                         while (cur < endMoves) {
-                            move = moves[cur++].move;
+                            move = Movegen.ExtMove.move(moves[cur++]);
                             if (move != ttMove) {
                                 return move;
                             }
@@ -3733,6 +4085,180 @@ public class ChessAlgorithm {
     }
 
 
+    public static class MoveScheduler {
+
+        private static MoveScheduler Default;
+
+        private final PriorityQueue<Request> light = new PriorityQueue<>();
+        private final PriorityQueue<Request> heavy = new PriorityQueue<>();
+        private final Worker[] workers;
+        private long sequence = 0;
+        private boolean shutdown = false;
+
+        // EASY and MEDIUM requests go before HARD ones, and with more than one worker, worker 0 never takes a HARD
+        // search, so a cheap reply is never stuck behind depth 10 searches
+        public MoveScheduler(int size) {
+            workers = new Worker[Math.max(size, 1)];
+            for (int i = 0; i < workers.length; i++) {
+                ChessAlgorithm algorithm = new ChessAlgorithm(new Engine());
+                algorithm.main();
+                workers[i] = new Worker(algorithm, i == 0 && workers.length > 1);
+                Thread t = new Thread(workers[i], "MoveScheduler-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+
+        public static synchronized MoveScheduler get() {
+            if (Default == null) {
+                Default = new MoveScheduler(Runtime.getRuntime().availableProcessors());
+            }
+            return Default;
+        }
+
+
+        // Cancelling the future drops a queued request, or stops the search of a running one. The worker searches a
+        // copy of the position, so the caller may change it as soon as submit() returns
+        public CompletableFuture<Integer> submit(Position position, int gameDifficultyLevel) {
+            Position copy = new Position();
+            copy.set(position.fen(), position.chess960, new Position.StateInfo(), position.thisThread);
+            copy.st = position.st;
+
+            final Request r = new Request(copy, gameDifficultyLevel);
+
+            synchronized (this) {
+                if (shutdown) {
+                    r.future.completeExceptionally(new IllegalStateException("MoveScheduler is shut down"));
+                    return r.future;
+                }
+                r.seq = sequence++;
+                (gameDifficultyLevel == HARD ? heavy : light).add(r);
+                notifyAll();
+            }
+
+            r.future.whenComplete((m, e) -> {
+                if (r.future.isCancelled()) {
+                    cancel(r);
+                }
+            });
+            return r.future;
+        }
+
+        // r.worker and r.searchId only change under this lock, so the stop can only reach the search of r
+        private synchronized void cancel(Request r) {
+            if (light.remove(r) || heavy.remove(r)) {
+                return;
+            }
+            if (r.worker != null) {
+                r.worker.algorithm.engine.Threads.stop(r.searchId);
+            }
+        }
+
+        private synchronized Request take(Worker w) throws InterruptedException {
+            while (true) {
+                if (shutdown) {
+                    return null;
+                }
+                Request r = light.poll();
+                if (r == null && !w.lightOnly) {
+                    r = heavy.poll();
+                }
+                if (r != null) {
+                    r.worker = w;
+                    r.searchId = w.algorithm.engine.Threads.searchId + 1;
+                    return r;
+                }
+                wait();
+            }
+        }
+
+        // Requests that never reached start_thinking() (EASY levels, opening moves) leave the reserved search number
+        // to the next request, which must not inherit a stop meant for this one
+        private synchronized void release(Request r) {
+            if (r.worker.algorithm.engine.Threads.searchId != r.searchId) {
+                r.worker.algorithm.engine.Threads.stop(0);
+            }
+            r.worker = null;
+        }
+
+        public synchronized int queued() {
+            return light.size() + heavy.size();
+        }
+
+        public void shutdown() {
+            synchronized (this) {
+                shutdown = true;
+                notifyAll();
+                for (Request r : light) {
+                    r.future.cancel(false);
+                }
+                for (Request r : heavy) {
+                    r.future.cancel(false);
+                }
+            }
+            for (Worker w : workers) {
+                w.algorithm.stopThinking();
+            }
+        }
+
+
+        private static class Request implements Comparable<Request> {
+            final Position position;
+            final int level;
+            final CompletableFuture<Integer> future = new CompletableFuture<>();
+            final long startNanos = System.nanoTime();     // deadlines count from submission, queueing included
+            long seq;
+            Worker worker;
+            long searchId;      // the number the worker's next search will get
+
+            Request(Position position, int level) {
+                this.position = position;
+                this.level = level;
+            }
+
+            @Override
+            public int compareTo(Request o) {
+                return level != o.level ? Integer.compare(level, o.level) : Long.compare(seq, o.seq);
+            }
+        }
+
+
+        private class Worker implements Runnable {
+            final ChessAlgorithm algorithm;
+            final boolean lightOnly;
+
+            Worker(ChessAlgorithm algorithm, boolean lightOnly) {
+                this.algorithm = algorithm;
+                this.lightOnly = lightOnly;
+            }
+
+            @Override
+            public void run() {
+                while (true) {
+                    Request r;
+                    try {
+                        if ((r = take(this)) == null) {
+                            return;
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    try {
+                        if (!r.future.isDone()) {
+                            r.future.complete(findTheBestMove(algorithm.engine, r.position, r.level, r.startNanos));
+                        }
+                    } catch (RuntimeException e) {
+                        r.future.completeExceptionally(e);
+                    } finally {
+                        release(r);
+                    }
+                }
+            }
+        }
+    }
+
+
     public static class Pawns {
 
         public static final int Isolated = ((18 << 16) | (13 & 0xffff));
@@ -3770,69 +4296,65 @@ public class ChessAlgorithm {
 
         public static final int MaxSafetyBonus = 258;
 
+        // A cursor on one slot of its Table, moved by Table.get()
         public static class Entry {
-            public long key = 0;
-            public int score;
-            public long[] passedPawns = new long[Types.Color.COLOR_NB];
-            public long[] pawnAttacks = new long[Types.Color.COLOR_NB];
-            public long[] pawnAttacksSpan = new long[Types.Color.COLOR_NB];
-            public int[] kingSquares = new int[Types.Color.COLOR_NB];
-            public int[] kingSafety = new int[Types.Color.COLOR_NB];
-            public int[] weakUnopposed = new int[Types.Color.COLOR_NB];
-            public int[] castlingRights = new int[Types.Color.COLOR_NB];
-            public int[] semiopenFiles = new int[Types.Color.COLOR_NB];
-            public int[][] pawnsOnSquares = new int[Types.Color.COLOR_NB][Types.Color.COLOR_NB];
-            public int asymmetry;
-            public int openFiles;
+            public final Table table;
+            public int index;
+
+            Entry(Table table) {
+                this.table = table;
+            }
 
             public int pawns_score() {
-                return score;
+                return table.scores[index];
             }
 
             public long pawn_attacks(int c) {
-                return pawnAttacks[c];
+                return table.pawnAttacks[2 * index + c];
             }
 
             public long passed_pawns(int c) {
-                return passedPawns[c];
+                return table.passedPawns[2 * index + c];
             }
 
             public long pawn_attacks_span(int c) {
-                return pawnAttacksSpan[c];
+                return table.pawnAttacksSpan[2 * index + c];
             }
 
             public int weak_unopposed(int c) {
-                return weakUnopposed[c];
+                return table.weakUnopposed[2 * index + c];
             }
 
             public int pawn_asymmetry() {
-                return asymmetry;
+                return table.asymmetry[index];
             }
 
             public int open_files() {
-                return openFiles;
+                return table.openFiles[index];
             }
 
             public int semiopen_file(int c, int f) {
-                return semiopenFiles[c] & (1 << f);
+                return table.semiopenFiles[2 * index + c] & (1 << f);
             }
 
             public int semiopen_side(int c, int f, boolean leftSide) {
-                return semiopenFiles[c] & (leftSide ? (1 << f) - 1 : ~((1 << (f + 1)) - 1));
+                return table.semiopenFiles[2 * index + c] & (leftSide ? (1 << f) - 1 : ~((1 << (f + 1)) - 1));
             }
 
             public int pawns_on_same_color_squares(int c, int s) {
-                return pawnsOnSquares[c][(Bitboards.DarkSquares & Bitboards.SquareBB[s]) != 0 ? 1 : 0];
+                return table.pawnsOnSquares[4 * index + 2 * c + ((Bitboards.DarkSquares & Bitboards.SquareBB[s]) != 0 ? 1 : 0)];
             }
 
             public int king_safety_as_a_function_of_TemplateColor(int Us, Position pos, int ksq) {
-                return kingSquares[Us] == ksq && castlingRights[Us] == (pos.st.castlingRights & ((Types.CastlingRight.WHITE_OO | Types.CastlingRight.WHITE_OOO) << (2 * Us)))
-                        ? kingSafety[Us] : (kingSafety[Us] = do_king_safety_as_a_function_of_TemplateColor(Us, pos, ksq));
+                final int j = 2 * index + Us;
+                return table.kingSquares[j] == ksq && table.castlingRights[j] == (pos.st.castlingRights & ((Types.CastlingRight.WHITE_OO | Types.CastlingRight.WHITE_OOO) << (2 * Us)))
+                        ? table.kingSafety[j] : (table.kingSafety[j] = do_king_safety_as_a_function_of_TemplateColor(Us, pos, ksq));
             }
 
             public int do_king_safety_as_a_function_of_TemplateColor(int Us, Position pos, int ksq) {
-                kingSquares[Us] = ksq;
-                castlingRights[Us] = (pos.st.castlingRights & ((Types.CastlingRight.WHITE_OO | Types.CastlingRight.WHITE_OOO) << (2 * Us)));
+                final int j = 2 * index + Us;
+                table.kingSquares[j] = ksq;
+                table.castlingRights[j] = (pos.st.castlingRights & ((Types.CastlingRight.WHITE_OO | Types.CastlingRight.WHITE_OOO) << (2 * Us)));
                 int minKingPawnDistance = 0;
 
                 long pawns = (pos.byColorBB[Us] & pos.byTypeBB[Types.PieceType.PAWN]);
@@ -3882,18 +4404,49 @@ public class ChessAlgorithm {
         }
 
 
+        // Struct of arrays, per color fields at [2 * index + c], pawnsOnSquares at [4 * index + 2 * c + squareColor]
         public static class Table {
-            private int Size = 16384;
-            private List<Entry> table = new ArrayList<Entry>(Size);
+            public static final int DefaultSize = 16384;
+
+            final int mask;
+            final long[] keys;
+            final int[] scores, asymmetry, openFiles;
+            final long[] passedPawns, pawnAttacks, pawnAttacksSpan;
+            final int[] kingSquares, kingSafety, weakUnopposed, castlingRights, semiopenFiles;
+            final int[] pawnsOnSquares;
+            private final Entry entry = new Entry(this);
+
+            public long probes, hits, replaces;
 
             public Table() {
-                for (int i = 0; i < Size; i++) {
-                    table.add(new Entry());
-                }
+                this(DefaultSize);
+            }
+
+            public Table(int size) {
+                size = Integer.highestOneBit(Math.max(size, 1));
+                mask = size - 1;
+                keys = new long[size];
+                scores = new int[size];
+                asymmetry = new int[size];
+                openFiles = new int[size];
+                passedPawns = new long[2 * size];
+                pawnAttacks = new long[2 * size];
+                pawnAttacksSpan = new long[2 * size];
+                kingSquares = new int[2 * size];
+                kingSafety = new int[2 * size];
+                weakUnopposed = new int[2 * size];
+                castlingRights = new int[2 * size];
+                semiopenFiles = new int[2 * size];
+                pawnsOnSquares = new int[4 * size];
+            }
+
+            public int size() {
+                return mask + 1;
             }
 
             public Entry get(long key) {
-                return table.get((int) (key & (Size - 1)));
+                entry.index = (int) key & mask;
+                return entry;
             }
         }
 
@@ -3915,17 +4468,27 @@ public class ChessAlgorithm {
 
 
         public static Entry probe(Position pos) {
+            return probe(pos, pos.thisThread.pawnsTable);
+        }
+
+        public static Entry probe(Position pos, Table table) {
             long key = pos.st.pawnKey;
-            Entry e = pos.thisThread.pawnsTable.get(key);
+            Entry e = table.get(key);
+            final int i = e.index;
 
-            if (e.key == key) {
+            table.probes++;
+            if (table.keys[i] == key) {
+                table.hits++;
                 return e;
             }
+            if (table.keys[i] != 0) {
+                table.replaces++;
+            }
 
-            e.key = key;
-            e.score = evaluate_as_a_function_of_TemplateColor(Types.Color.WHITE, pos, e) - evaluate_as_a_function_of_TemplateColor(Types.Color.BLACK, pos, e);
-            e.asymmetry = Long.bitCount(e.semiopenFiles[Types.Color.WHITE] ^ e.semiopenFiles[Types.Color.BLACK]);
-            e.openFiles = Long.bitCount(e.semiopenFiles[Types.Color.WHITE] & e.semiopenFiles[Types.Color.BLACK]);
+            table.keys[i] = key;
+            table.scores[i] = evaluate_as_a_function_of_TemplateColor(Types.Color.WHITE, pos, e) - evaluate_as_a_function_of_TemplateColor(Types.Color.BLACK, pos, e);
+            table.asymmetry[i] = Long.bitCount(table.semiopenFiles[2 * i + Types.Color.WHITE] ^ table.semiopenFiles[2 * i + Types.Color.BLACK]);
+            table.openFiles[i] = Long.bitCount(table.semiopenFiles[2 * i + Types.Color.WHITE] & table.semiopenFiles[2 * i + Types.Color.BLACK]);
             return e;
         }
 
@@ -3943,22 +4506,24 @@ public class ChessAlgorithm {
             int score = Types.Score.SCORE_ZERO;
             final int[] pl = pos.pieceList[((Us << 3) + Types.PieceType.PAWN)];
             int pl_Index = 0;
+            final Table t = e.table;
+            final int j = 2 * e.index + Us;
 
             long ourPawns = (pos.byColorBB[Us] & pos.byTypeBB[Types.PieceType.PAWN]);
             long theirPawns = (pos.byColorBB[Them] & pos.byTypeBB[Types.PieceType.PAWN]);
 
-            e.passedPawns[Us] = e.pawnAttacksSpan[Us] = e.weakUnopposed[Us] = 0;
-            e.semiopenFiles[Us] = 0xFF;
-            e.kingSquares[Us] = Types.Square.SQ_NONE;
-            e.pawnAttacks[Us] = Bitboards.shift(Right, ourPawns) | Bitboards.shift(Left, ourPawns);
-            e.pawnsOnSquares[Us][Types.Color.BLACK] = Long.bitCount(ourPawns & Bitboards.DarkSquares);
-            e.pawnsOnSquares[Us][Types.Color.WHITE] = pos.pieceCount[((Us << 3) + Types.PieceType.PAWN)] - e.pawnsOnSquares[Us][Types.Color.BLACK];
+            t.passedPawns[j] = t.pawnAttacksSpan[j] = t.weakUnopposed[j] = 0;
+            t.semiopenFiles[j] = 0xFF;
+            t.kingSquares[j] = Types.Square.SQ_NONE;
+            t.pawnAttacks[j] = Bitboards.shift(Right, ourPawns) | Bitboards.shift(Left, ourPawns);
+            t.pawnsOnSquares[2 * j + Types.Color.BLACK] = Long.bitCount(ourPawns & Bitboards.DarkSquares);
+            t.pawnsOnSquares[2 * j + Types.Color.WHITE] = pos.pieceCount[((Us << 3) + Types.PieceType.PAWN)] - t.pawnsOnSquares[2 * j + Types.Color.BLACK];
 
             while ((s = pl[pl_Index++]) != Types.Square.SQ_NONE) {
                 int f = (s & 7);
 
-                e.semiopenFiles[Us] &= ~(1 << f);
-                e.pawnAttacksSpan[Us] |= Bitboards.PawnAttackSpan[Us][s];
+                t.semiopenFiles[j] &= ~(1 << f);
+                t.pawnAttacksSpan[j] |= Bitboards.PawnAttackSpan[Us][s];
 
                 opposed = (theirPawns & Bitboards.ForwardFileBB[Us][s]) != 0;
                 stoppers = theirPawns & Bitboards.PassedPawnMask[Us][s];
@@ -3980,12 +4545,12 @@ public class ChessAlgorithm {
                         (ourPawns & Bitboards.ForwardFileBB[Us][s]) == 0 &&
                         Long.bitCount(supported) >= Long.bitCount(lever) &&
                         Long.bitCount(phalanx) >= Long.bitCount(leverPush)) {
-                    e.passedPawns[Us] = (e.passedPawns[Us] | Bitboards.SquareBB[s]);
+                    t.passedPawns[j] = (t.passedPawns[j] | Bitboards.SquareBB[s]);
                 } else if (stoppers == Bitboards.SquareBB[s + Up] && ((s >>> 3) ^ (Us * 7)) >= Types.Rank.RANK_5) {
                     b = Bitboards.shift(Up, supported) & ~theirPawns;
                     while (b != 0) {
                         if (!Bitboards.more_than_one(theirPawns & Bitboards.PawnAttacks[Us][Long.numberOfTrailingZeros(b)])) {
-                            e.passedPawns[Us] = (e.passedPawns[Us] | Bitboards.SquareBB[s]);
+                            t.passedPawns[j] = (t.passedPawns[j] | Bitboards.SquareBB[s]);
                         }
                         b &= b - 1;
                     }
@@ -3995,10 +4560,10 @@ public class ChessAlgorithm {
                     score += Connected[opposed ? 1 : 0][phalanx != 0 ? 1 : 0][Long.bitCount(supported)][((s >>> 3) ^ (Us * 7))];
                 } else if (neighbours == 0) {
                     score -= Isolated;
-                    e.weakUnopposed[Us] += !opposed ? 1 : 0;
+                    t.weakUnopposed[j] += !opposed ? 1 : 0;
                 } else if (backward) {
                     score -= Backward;
-                    e.weakUnopposed[Us] += !opposed ? 1 : 0;
+                    t.weakUnopposed[j] += !opposed ? 1 : 0;
                 }
 
                 if (doubled != 0 && supported == 0) {
@@ -4010,49 +4575,235 @@ public class ChessAlgorithm {
     }
 
 
-    public static class Position {
-        // Data members
-        public int[] board = new int[Types.Square.SQUARE_NB];
-        public long[] byTypeBB = new long[Types.PieceType.PIECE_TYPE_NB];
-        public long[] byColorBB = new long[Types.Color.COLOR_NB];
-        public int[] pieceCount = new int[Types.Piece.PIECE_NB];
-        public int[][] pieceList = new int[Types.Piece.PIECE_NB][16];
-        private int[] index = new int[Types.Square.SQUARE_NB];
-        private int[] castlingRightsMask = new int[Types.Square.SQUARE_NB];
-        public int[] castlingRookSquare = new int[Types.CastlingRight.CASTLING_RIGHT_NB];
-        public long[] castlingPath = new long[Types.CastlingRight.CASTLING_RIGHT_NB];
-        public int gamePly;
-        public int sideToMove;
-        public thread.Threadd thisThread;
-        public StateInfo st;
-        public boolean chess960;
+    public static class Perft {
 
-        public static class StateInfo {
-            // Copied when making a move
-            public long pawnKey = 0;
-            public long materialKey = 0;;
-            public int[] nonPawnMaterial = new int[Types.Color.COLOR_NB];
-            public int castlingRights;
-            public int rule50;
-            public int pliesFromNull;
-            public int psq;
-            public int epSquare;
-            // Not copied when making a move (will be recomputed anyhow)
-            public long key = 0;
-            public long checkersBB;
-            public int capturedPiece;
+        public static final String[] SuiteFens = {
+                "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+                "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+                "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+                "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+                "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+                "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10"
+        };
+
+        public static final long[][] SuiteNodes = {
+                {1, 20, 400, 8902, 197281, 4865609, 119060324},
+                {1, 48, 2039, 97862, 4085603, 193690690},
+                {1, 14, 191, 2812, 43238, 674624, 11030083},
+                {1, 6, 264, 9467, 422333, 15833292},
+                {1, 44, 1486, 62379, 2103487, 89941194},
+                {1, 46, 2079, 89890, 3894594, 164075551}
+        };
+
+        public static final int[] SuiteDepths = {5, 4, 5, 4, 4, 4};
+
+
+        public static class Table {
+            private final long[] keys;
+            private final long[] counts;
+            private final int mask;
+
+            public Table(int mbSize) {
+                int size = Integer.highestOneBit((int) Math.max(1, Math.min(1 << 30, (long) mbSize * 1024 * 1024 / 16)));
+                keys = new long[size];
+                counts = new long[size];
+                mask = size - 1;
+            }
+
+            public long probe(long key, int depth) {
+                long k = key ^ (depth * 0x9E3779B97F4A7C15L);
+                int i = (int) k & mask;
+                return keys[i] == k ? counts[i] : -1;
+            }
+
+            public void store(long key, int depth, long count) {
+                long k = key ^ (depth * 0x9E3779B97F4A7C15L);
+                int i = (int) k & mask;
+                keys[i] = k;
+                counts[i] = count;
+            }
+        }
+
+
+        public static long perft(Position pos, int depth, Table table, PrintStream divide) {
+            if (depth <= 0) {
+                return 1;
+            }
+
+            long[][] moves = new long[depth][Types.MAX_MOVES];
+            Position.StateInfo[] states = new Position.StateInfo[depth];
+            for (int i = 0; i < depth; i++) {
+                states[i] = new Position.StateInfo();
+            }
+
+            long nodes = 0;
+            int size = Movegen.generate_as_a_function_of_TemplateLEGAL(pos, moves[0], 0);
+
+            for (int i = 0; i < size; i++) {
+                int m = Movegen.ExtMove.move(moves[0][i]);
+                long cnt;
+
+                if (depth == 1) {
+                    cnt = 1;
+                } else {
+                    pos.do_move(m, states[0]);
+                    cnt = count(pos, depth - 1, 1, moves, states, table);
+                    pos.undo_move(m);
+                }
+
+                nodes += cnt;
+
+                if (divide != null) {
+                    divide.println(UCI.move(m, pos.chess960) + ": " + cnt);
+                }
+            }
+            return nodes;
+        }
+
+        private static long count(Position pos, int depth, int ply, long[][] moves, Position.StateInfo[] states, Table table) {
+            if (depth > 1 && table != null) {
+                long cached = table.probe(pos.st.key, depth);
+                if (cached >= 0) {
+                    return cached;
+                }
+            }
+
+            long[] moveList = moves[ply];
+            int size = Movegen.generate_as_a_function_of_TemplateLEGAL(pos, moveList, 0);
+
+            if (depth == 1) {
+                return size;
+            }
+
+            long nodes = 0;
+            for (int i = 0; i < size; i++) {
+                int m = Movegen.ExtMove.move(moveList[i]);
+                pos.do_move(m, states[ply]);
+                nodes += count(pos, depth - 1, ply + 1, moves, states, table);
+                pos.undo_move(m);
+            }
+
+            if (table != null) {
+                table.store(pos.st.key, depth, nodes);
+            }
+            return nodes;
+        }
+
+
+        // perft <depth> [divide] [hash <mb>] [fen <fen>]
+        // perft suite [<depth>] [hash <mb>]
+        public static boolean command(Engine engine, Scanner is, PrintStream out) {
+            String token;
+            int depth = 0;
+            boolean suite = false, divide = false;
+            Table table = null;
+            String fen = UCI.StartFEN;
+
+            while (is.hasNext()) {
+                token = is.next();
+                if (token.equals("suite")) {
+                    suite = true;
+                } else if (token.equals("divide")) {
+                    divide = true;
+                } else if (token.equals("hash")) {
+                    int mb = is.nextInt();
+                    if (mb <= 0) {
+                        out.println("Usage: perft suite | perft <depth> [divide] [hash <mb>] [fen <fen>], with mb >= 1");
+                        return false;
+                    }
+                    table = new Table(mb);
+                } else if (token.equals("fen")) {
+                    StringBuilder f = new StringBuilder();
+                    while (is.hasNext()) {
+                        f.append(f.length() == 0 ? "" : " ").append(is.next());
+                    }
+                    fen = f.toString();
+                } else {
+                    depth = Integer.parseInt(token);
+                }
+            }
+
+            if (!suite) {
+                Position pos = new Position();
+                pos.set(fen, engine.Options.get("UCI_Chess960").convertToInteger() != 0, new Position.StateInfo(), engine.Threads.main());
+                long elapsed = System.currentTimeMillis();
+                long nodes = perft(pos, depth, table, divide ? out : null);
+                elapsed = System.currentTimeMillis() - elapsed + 1;
+                out.println("\nNodes searched: " + nodes);
+                out.println("Time (ms): " + elapsed);
+                out.println("Nodes/second: " + 1000 * nodes / elapsed);
+                return true;
+            }
+
+            boolean passed = true;
+            long totalNodes = 0, totalElapsed = 0;
+
+            for (int i = 0; i < SuiteFens.length; i++) {
+                int d = Math.min(depth > 0 ? depth : SuiteDepths[i], SuiteNodes[i].length - 1);
+                Position pos = new Position();
+                pos.set(SuiteFens[i], false, new Position.StateInfo(), engine.Threads.main());
+                long elapsed = System.currentTimeMillis();
+                long nodes = perft(pos, d, table, null);
+                elapsed = System.currentTimeMillis() - elapsed;
+                boolean ok = nodes == SuiteNodes[i][d];
+                passed &= ok;
+                totalNodes += nodes;
+                totalElapsed += elapsed;
+                out.println((ok ? "OK   " : "FAIL ") + "depth " + d + " nodes " + nodes + " expected " + SuiteNodes[i][d] + " ms " + elapsed + " " + SuiteFens[i]);
+            }
+
+            totalElapsed += 1;
+            out.println("\n" + (passed ? "All perft counts match" : "Perft counts DO NOT match"));
+            out.println("Nodes searched: " + totalNodes);
+            out.println("Time (ms): " + totalElapsed);
+            out.println("Nodes/second: " + 1000 * totalNodes / totalElapsed);
+            return passed;
+        }
+    }
+
+
+    public static class Position {
+        // Data members
+        public int[] board = new int[Types.Square.SQUARE_NB];
+        public long[] byTypeBB = new long[Types.PieceType.PIECE_TYPE_NB];
+        public long[] byColorBB = new long[Types.Color.COLOR_NB];
+        public int[] pieceCount = new int[Types.Piece.PIECE_NB];
+        public int[][] pieceList = new int[Types.Piece.PIECE_NB][16];
+        private int[] index = new int[Types.Square.SQUARE_NB];
+        private int[] castlingRightsMask = new int[Types.Square.SQUARE_NB];
+        public int[] castlingRookSquare = new int[Types.CastlingRight.CASTLING_RIGHT_NB];
+        public long[] castlingPath = new long[Types.CastlingRight.CASTLING_RIGHT_NB];
+        public int gamePly;
+        public int sideToMove;
+        public thread.Threadd thisThread;
+        public StateInfo st;
+        public boolean chess960;
+
+        public static class StateInfo {
+            // Copied when making a move
+            public long pawnKey = 0;
+            public long materialKey = 0;;
+            public final int[] nonPawnMaterial = new int[Types.Color.COLOR_NB];
+            public int castlingRights;
+            public int rule50;
+            public int pliesFromNull;
+            public int psq;
+            public int epSquare;
+            // Not copied when making a move (will be recomputed anyhow)
+            public long key = 0;
+            public long checkersBB;
+            public int capturedPiece;
             public StateInfo previous;
-            public long[] blockersForKing = new long[Types.Color.COLOR_NB];
-            public long[] pinnersForKing = new long[Types.Color.COLOR_NB];
-            public long[] checkSquares = new long[Types.PieceType.PIECE_TYPE_NB];
+            public final long[] blockersForKing = new long[Types.Color.COLOR_NB];
+            public final long[] pinnersForKing = new long[Types.Color.COLOR_NB];
+            public final long[] checkSquares = new long[Types.PieceType.PIECE_TYPE_NB];
         }
 
         public static void copyCopyableMembersOfStateInfo(StateInfo newStateInfo, StateInfo oldStateInfo) {
             newStateInfo.pawnKey = oldStateInfo.pawnKey;
             newStateInfo.materialKey = oldStateInfo.materialKey;
-            for (int i = 0; i < oldStateInfo.nonPawnMaterial.length; i++) {
-                newStateInfo.nonPawnMaterial[i] = oldStateInfo.nonPawnMaterial[i];
-            }
+            newStateInfo.nonPawnMaterial[Types.Color.WHITE] = oldStateInfo.nonPawnMaterial[Types.Color.WHITE];
+            newStateInfo.nonPawnMaterial[Types.Color.BLACK] = oldStateInfo.nonPawnMaterial[Types.Color.BLACK];
             newStateInfo.castlingRights = oldStateInfo.castlingRights;
             newStateInfo.rule50 = oldStateInfo.rule50;
             newStateInfo.pliesFromNull = oldStateInfo.pliesFromNull;
@@ -4063,9 +4814,8 @@ public class ChessAlgorithm {
         public static void copyEntireMembersOfStateInfo(StateInfo newStateInfo, StateInfo oldStateInfo) {
             newStateInfo.pawnKey = oldStateInfo.pawnKey;
             newStateInfo.materialKey = oldStateInfo.materialKey;
-            for (int i = 0; i < oldStateInfo.nonPawnMaterial.length; i++) {
-                newStateInfo.nonPawnMaterial[i] = oldStateInfo.nonPawnMaterial[i];
-            }
+            newStateInfo.nonPawnMaterial[Types.Color.WHITE] = oldStateInfo.nonPawnMaterial[Types.Color.WHITE];
+            newStateInfo.nonPawnMaterial[Types.Color.BLACK] = oldStateInfo.nonPawnMaterial[Types.Color.BLACK];
             newStateInfo.castlingRights = oldStateInfo.castlingRights;
             newStateInfo.rule50 = oldStateInfo.rule50;
             newStateInfo.pliesFromNull = oldStateInfo.pliesFromNull;
@@ -4075,15 +4825,11 @@ public class ChessAlgorithm {
             newStateInfo.checkersBB = oldStateInfo.checkersBB;
             newStateInfo.capturedPiece = oldStateInfo.capturedPiece;
             newStateInfo.previous = oldStateInfo.previous;
-            for (int i = 0; i < oldStateInfo.blockersForKing.length; i++) {
-                newStateInfo.blockersForKing[i] = oldStateInfo.blockersForKing[i];
-            }
-            for (int i = 0; i < oldStateInfo.pinnersForKing.length; i++) {
-                newStateInfo.pinnersForKing[i] = oldStateInfo.pinnersForKing[i];
-            }
-            for (int i = 0; i < oldStateInfo.checkSquares.length; i++) {
-                newStateInfo.checkSquares[i] = oldStateInfo.checkSquares[i];
-            }
+            newStateInfo.blockersForKing[Types.Color.WHITE] = oldStateInfo.blockersForKing[Types.Color.WHITE];
+            newStateInfo.blockersForKing[Types.Color.BLACK] = oldStateInfo.blockersForKing[Types.Color.BLACK];
+            newStateInfo.pinnersForKing[Types.Color.WHITE] = oldStateInfo.pinnersForKing[Types.Color.WHITE];
+            newStateInfo.pinnersForKing[Types.Color.BLACK] = oldStateInfo.pinnersForKing[Types.Color.BLACK];
+            System.arraycopy(oldStateInfo.checkSquares, 0, newStateInfo.checkSquares, 0, Types.PieceType.PIECE_TYPE_NB);
         }
 
         public static class Zobrist {
@@ -4114,7 +4860,7 @@ public class ChessAlgorithm {
         public static void resetStateInfoFields(StateInfo si) {
             si.pawnKey = 0;
             si.materialKey = 0;
-            si.nonPawnMaterial = new int[Types.Color.COLOR_NB];
+            Arrays.fill(si.nonPawnMaterial, 0);
             si.castlingRights = 0;
             si.rule50 = 0;
             si.pliesFromNull = 0;
@@ -4124,9 +4870,9 @@ public class ChessAlgorithm {
             si.checkersBB = 0;
             si.capturedPiece = 0;
             si.previous = null;
-            si.blockersForKing = new long[Types.Color.COLOR_NB];
-            si.pinnersForKing = new long[Types.Color.COLOR_NB];
-            si.checkSquares = new long[Types.PieceType.PIECE_TYPE_NB];
+            Arrays.fill(si.blockersForKing, 0);
+            Arrays.fill(si.pinnersForKing, 0);
+            Arrays.fill(si.checkSquares, 0);
         }
 
         public static final String PieceToChar = " PNBRQK  pnbrqk";
@@ -4188,6 +4934,41 @@ public class ChessAlgorithm {
         public Position() {}
 
         // FEN string input/output
+        // The checks set() relies on: eight ranks of eight squares, one king of each color and a side to move
+        public static boolean is_valid_fen(String fenStr) {
+            String[] fields = fenStr.trim().split("\\s+");
+            if (fields.length < 2 || !(fields[1].equals("w") || fields[1].equals("b"))) {
+                return false;
+            }
+
+            String[] ranks = fields[0].split("/", -1);
+            if (ranks.length != 8) {
+                return false;
+            }
+
+            int whiteKings = 0, blackKings = 0;
+            for (String rank : ranks) {
+                int files = 0;
+                for (int i = 0; i < rank.length(); i++) {
+                    char c = rank.charAt(i);
+                    if (c >= '1' && c <= '8') {
+                        files += c - '0';
+                    } else if (c != ' ' && PieceToChar.indexOf(c) > 0) {
+                        files++;
+                        whiteKings += c == 'K' ? 1 : 0;
+                        blackKings += c == 'k' ? 1 : 0;
+                    } else {
+                        return false;
+                    }
+                }
+                if (files != 8) {
+                    return false;
+                }
+            }
+
+            return whiteKings == 1 && blackKings == 1;
+        }
+
         public Position set(String fenStr, boolean isChess960, StateInfo si, thread.Threadd th) {
             char col, row;
             String token;
@@ -4222,8 +5003,8 @@ public class ChessAlgorithm {
             token = ss.next();
             sideToMove = (token.charAt(0) == 'w' ? Types.Color.WHITE : Types.Color.BLACK);
 
-            // 3. Castling availability.
-            token = ss.next();
+            // 3. Castling availability. This and the next fields may be missing, as in Stockfish
+            token = ss.hasNext() ? ss.next() : "-";
             for (int i = 0; i < token.length(); i++) {
                 char tokenCharacter = token.charAt(i);
                 int rsq;
@@ -4232,20 +5013,23 @@ public class ChessAlgorithm {
 
                 char toUpperChangedCharacter = Character.toUpperCase(tokenCharacter);
                 if (toUpperChangedCharacter == 'K') {
-                    for (rsq = (Types.Square.SQ_H1 ^ (c * 56)); board[rsq] != rook; --rsq) {}
+                    for (rsq = (Types.Square.SQ_H1 ^ (c * 56)); rsq > (Types.Square.SQ_A1 ^ (c * 56)) && board[rsq] != rook; --rsq) {}
                 } else if (toUpperChangedCharacter == 'Q') {
-                    for (rsq = (Types.Square.SQ_A1 ^ (c * 56)); board[rsq] != rook; ++rsq) {}
+                    for (rsq = (Types.Square.SQ_A1 ^ (c * 56)); rsq < (Types.Square.SQ_H1 ^ (c * 56)) && board[rsq] != rook; ++rsq) {}
                 } else if (toUpperChangedCharacter >= 'A' && toUpperChangedCharacter <= 'H') {
                     rsq = (((Types.Rank.RANK_1 ^ (c * 7)) << 3) + (toUpperChangedCharacter - 'A'));
                 } else {
                     continue;
                 }
+                if (board[rsq] != rook || pieceCount[((c << 3) + Types.PieceType.KING)] != 1) {
+                    continue;
+                }
                 set_castling_right(c, rsq);
             }
 
             // 4. En passant square. Ignore if no pawn capture is possible
-            token = ss.next();
-            if (token.length() > 1) {
+            token = ss.hasNext() ? ss.next() : "-";
+            if (token.length() > 1 && token.charAt(0) >= 'a' && token.charAt(0) <= 'h' && token.charAt(1) == (sideToMove == Types.Color.WHITE ? '6' : '3')) {
                 col = token.charAt(0);
                 row = token.charAt(1);
                 st.epSquare = (((row - '1') << 3) + (col - 'a'));
@@ -4258,8 +5042,8 @@ public class ChessAlgorithm {
             }
 
             // 5-6. Halfmove clock and fullmove number
-            st.rule50 = ss.nextInt();
-            gamePly = ss.nextInt();
+            st.rule50 = ss.hasNextInt() ? ss.nextInt() : 0;
+            gamePly = ss.hasNextInt() ? ss.nextInt() : 1;
             ss.close();
 
             // Convert from fullmove starting from 1 to gamePly starting from 0,
@@ -4273,6 +5057,71 @@ public class ChessAlgorithm {
             return this;
         }
 
+        public static final int PackedLongs = 4;
+
+        // A board in PackedLongs longs: the occupied squares, the piece on each of them from a1 to h8 in 4 bits
+        // (two longs, 32 pieces), then sideToMove | castlingRights << 1 | epSquare << 5 | rule50 << 12 | gamePly << 20
+        public void pack(long[] packed, int offset) {
+            long occupied = byTypeBB[Types.PieceType.ALL_PIECES];
+            long lo = 0, hi = 0;
+            int n = 0;
+
+            for (long b = occupied; b != 0; b &= b - 1, n++) {
+                long pc = board[Long.numberOfTrailingZeros(b)];
+                if (n < 16) {
+                    lo |= pc << (4 * n);
+                } else {
+                    hi |= pc << (4 * (n - 16));
+                }
+            }
+
+            packed[offset] = occupied;
+            packed[offset + 1] = lo;
+            packed[offset + 2] = hi;
+            packed[offset + 3] = sideToMove | (st.castlingRights << 1) | (st.epSquare << 5) | (st.rule50 << 12) | ((long) gamePly << 20);
+        }
+
+        public Position set(long[] packed, int offset, StateInfo si, thread.Threadd th) {
+            resetPositionFields(this);
+            resetStateInfoFields(si);
+            for (int i = 0; i < pieceList.length; i++) {
+                Arrays.fill(pieceList[i], Types.Square.SQ_NONE);
+            }
+            st = si;
+
+            int n = 0;
+            for (long b = packed[offset]; b != 0; b &= b - 1, n++) {
+                long pieces = n < 16 ? packed[offset + 1] : packed[offset + 2];
+                put_piece((int) (pieces >>> (4 * (n & 15))) & 0xf, Long.numberOfTrailingZeros(b));
+            }
+
+            long state = packed[offset + 3];
+            sideToMove = (int) state & 1;
+
+            for (int c = Types.Color.WHITE; c <= Types.Color.BLACK; ++c) {
+                int rook = ((c << 3) + Types.PieceType.ROOK);
+                int rsq;
+                if ((state & ((long) Types.CastlingRight.WHITE_OO << (2 * c + 1))) != 0) {
+                    for (rsq = (Types.Square.SQ_H1 ^ (c * 56)); board[rsq] != rook; --rsq) {}
+                    set_castling_right(c, rsq);
+                }
+                if ((state & ((long) Types.CastlingRight.WHITE_OOO << (2 * c + 1))) != 0) {
+                    for (rsq = (Types.Square.SQ_A1 ^ (c * 56)); board[rsq] != rook; ++rsq) {}
+                    set_castling_right(c, rsq);
+                }
+            }
+
+            st.epSquare = (int) (state >>> 5) & 0x7f;
+            st.rule50 = (int) (state >>> 12) & 0xff;
+            gamePly = (int) (state >>> 20) & 0xffff;
+
+            chess960 = false;
+            thisThread = th;
+            set_state(st);
+
+            return this;
+        }
+
         public Position set(String code, int c, StateInfo si) {
             String[] sides = {code.substring(code.indexOf('K', 1)), code.substring(0, code.indexOf('K', 1))};
 
@@ -4349,8 +5198,12 @@ public class ChessAlgorithm {
         }
 
         public long slider_blockers(long sliders, int s, long[] pinners) { //Should do so many things after this method is called
+            return slider_blockers(sliders, s, pinners, 0);
+        }
+
+        public long slider_blockers(long sliders, int s, long[] pinners, int pinnersIdx) {
             long result = 0;
-            pinners[0] = 0;
+            long pinnersBB = 0;
 
             long snipers = ((Bitboards.PseudoAttacks[Types.PieceType.ROOK][s] & (byTypeBB[Types.PieceType.QUEEN] | byTypeBB[Types.PieceType.ROOK]))
                     | (Bitboards.PseudoAttacks[Types.PieceType.BISHOP][s] & (byTypeBB[Types.PieceType.QUEEN] | byTypeBB[Types.PieceType.BISHOP]))) & sliders;
@@ -4363,10 +5216,11 @@ public class ChessAlgorithm {
                 if (!((b & (b - 1)) != 0)) {
                     result |= b;
                     if ((b & byColorBB[(board[s] >>> 3)]) != 0) {
-                        pinners[0] = (pinners[0] | Bitboards.SquareBB[sniperSq]);
+                        pinnersBB |= Bitboards.SquareBB[sniperSq];
                     }
                 }
             }
+            pinners[pinnersIdx] = pinnersBB;
             return result;
         }
 
@@ -4918,12 +5772,8 @@ public class ChessAlgorithm {
         }
 
         private void set_check_info(StateInfo si) {
-            long[] pinnersWhite = {si.pinnersForKing[Types.Color.WHITE]};
-            si.blockersForKing[Types.Color.WHITE] = slider_blockers(byColorBB[Types.Color.BLACK], pieceList[((Types.Color.WHITE << 3) + Types.PieceType.KING)][0], pinnersWhite);
-            si.pinnersForKing[Types.Color.WHITE] = pinnersWhite[0];
-            long[] pinnersBlack = {si.pinnersForKing[Types.Color.BLACK]};
-            si.blockersForKing[Types.Color.BLACK] = slider_blockers(byColorBB[Types.Color.WHITE], pieceList[((Types.Color.BLACK << 3) + Types.PieceType.KING)][0], pinnersBlack);
-            si.pinnersForKing[Types.Color.BLACK] = pinnersBlack[0];
+            si.blockersForKing[Types.Color.WHITE] = slider_blockers(byColorBB[Types.Color.BLACK], pieceList[((Types.Color.WHITE << 3) + Types.PieceType.KING)][0], si.pinnersForKing, Types.Color.WHITE);
+            si.blockersForKing[Types.Color.BLACK] = slider_blockers(byColorBB[Types.Color.WHITE], pieceList[((Types.Color.BLACK << 3) + Types.PieceType.KING)][0], si.pinnersForKing, Types.Color.BLACK);
 
             int ksq = pieceList[(((sideToMove ^ Types.Color.BLACK) << 3) + Types.PieceType.KING)][0];
 
@@ -5122,6 +5972,40 @@ public class ChessAlgorithm {
             public int staticEval;
             public int statScore;
             public int moveCount;
+
+            // Per-ply scratch reused by every node searched at this ply
+            public int[] pvBuffer = new int[Types.MAX_PLY + 1];
+            public int[] capturesSearched = new int[32];
+            public int[] quietsSearched = new int[64];
+            public Position.StateInfo st = new Position.StateInfo();
+            public boolean[] ttHit = new boolean[1];
+            public tt.TTEntry ttEntry = new tt.TTEntry();
+            public tt.TTEntry singularTTEntry = new tt.TTEntry();
+            public Movepick.MovePicker movePicker = new Movepick.MovePicker();
+            public Movepick.MovePicker singularMovePicker = new Movepick.MovePicker();
+            public Movepick.PieceToHistory[] contHist = new Movepick.PieceToHistory[4];
+            public long[] moves = new long[Types.MAX_MOVES];
+            public long[] singularMoves = new long[Types.MAX_MOVES];
+
+            // The singular extension search re-enters the same ply while the outer move picker is live
+            public long[] moves_buffer() {
+                return excludedMove != Types.Move.MOVE_NONE ? singularMoves : moves;
+            }
+
+            public tt.TTEntry tt_entry() {
+                return excludedMove != Types.Move.MOVE_NONE ? singularTTEntry : ttEntry;
+            }
+
+            public Movepick.MovePicker move_picker() {
+                return excludedMove != Types.Move.MOVE_NONE ? singularMovePicker : movePicker;
+            }
+
+            public void clear() {
+                pv = null;
+                ply = currentMove = excludedMove = 0;
+                killers[0] = killers[1] = 0;
+                staticEval = statScore = moveCount = 0;
+            }
         }
 
         public static class RootMove {
@@ -5144,7 +6028,7 @@ public class ChessAlgorithm {
 
                 pos.do_move(pv.get(0), st);
                 boolean[] ttHitArray = new boolean[1];
-                tt.TTEntry tte = tt.TT.probe(pos.st.key, ttHitArray);
+                tt.TTEntry tte = pos.thisThread.engine.TT.probe(pos.st.key, ttHitArray, new tt.TTEntry());
                 ttHit = ttHitArray[0];
 
                 if (ttHit) {
@@ -5184,9 +6068,10 @@ public class ChessAlgorithm {
             public List<Integer> searchmoves = new ArrayList<>();
             public int[] time = new int[Types.Color.COLOR_NB];
             public int[] inc = new int[Types.Color.COLOR_NB];
-            public int npmsec, movestogo, depth, movetime, mate, perft, infinite;
+            public int npmsec, movestogo, depth, movetime, deadline, mate, perft, infinite;
             public long nodes;
-            public long startTime;
+            public long startTime, startNanos;
+            public boolean ponderMode;
 
             public LimitsType() {
                 time[Types.Color.WHITE] = 0;
@@ -5197,6 +6082,7 @@ public class ChessAlgorithm {
                 movestogo = 0;
                 depth = 0;
                 movetime = 0;
+                deadline = 0;
                 mate = 0;
                 perft = 0;
                 infinite = 0;
@@ -5204,12 +6090,10 @@ public class ChessAlgorithm {
             }
 
             public boolean use_time_management() {
-                return (mate | movetime | depth | nodes | perft | infinite) == 0;
+                return (mate | movetime | deadline | depth | nodes | perft | infinite) == 0;
             }
         }
 
-        public static LimitsType Limits = new LimitsType();
-
         public static class NodeType {
             public static final int NonPV = 0;
             public static final int PV = 1;
@@ -5254,8 +6138,7 @@ public class ChessAlgorithm {
 
 
             public static Misc.PRNG rng = new Misc.PRNG(System.currentTimeMillis());
-            public int pick_best(int multiPV) {
-                final RootMoves rootMoves = thread.Threads.main().rootMoves;
+            public int pick_best(RootMoves rootMoves, int multiPV) {
 
                 int topScore = rootMoves.get(0).score;
                 int delta = Math.min(topScore - rootMoves.get(multiPV - 1).score, Types.Value.PawnValueMg);
@@ -5279,11 +6162,11 @@ public class ChessAlgorithm {
             final boolean PvNode = NT == NodeType.PV;
             final boolean rootNode = PvNode && stackForSS[ss].ply == 0;
 
-            int[] pv = new int[Types.MAX_PLY + 1];
-            int[] capturesSearched = new int[32];
-            int[] quietsSearched = new int[64];
+            int[] pv = stackForSS[ss].pvBuffer;
+            int[] capturesSearched = stackForSS[ss].capturesSearched;
+            int[] quietsSearched = stackForSS[ss].quietsSearched;
 
-            Position.StateInfo st = new Position.StateInfo();
+            Position.StateInfo st = stackForSS[ss].st;
             tt.TTEntry tte;
             long posKey;
             int ttMove, move, excludedMove, bestMove;
@@ -5302,7 +6185,7 @@ public class ChessAlgorithm {
             bestValue = -Types.Value.VALUE_INFINITE;
             maxValue = Types.Value.VALUE_INFINITE;
 
-            if (thisThread == thread.Threads.main()) {
+            if (thisThread == thisThread.engine.Threads.main()) {
                 ((thread.MainThread) thisThread).check_time();
             }
 
@@ -5312,7 +6195,7 @@ public class ChessAlgorithm {
 
             if (!rootNode) {
                 // Step 2.
-                if (thread.Threads.stop || pos.is_draw(stackForSS[ss].ply) || stackForSS[ss].ply >= Types.MAX_PLY) {
+                if (thisThread.engine.Threads.stop || pos.is_draw(stackForSS[ss].ply) || stackForSS[ss].ply >= Types.MAX_PLY) {
                     return stackForSS[ss].ply >= Types.MAX_PLY && !inCheck ? Eval.evaluate(pos) : Types.Value.VALUE_DRAW;
                 }
 
@@ -5333,8 +6216,8 @@ public class ChessAlgorithm {
             // Step 4.
             excludedMove = stackForSS[ss].excludedMove;
             posKey = pos.st.key ^ (excludedMove << 16);
-            boolean[] ttHitArray = new boolean[1];
-            tte = tt.TT.probe(posKey, ttHitArray);
+            boolean[] ttHitArray = stackForSS[ss].ttHit;
+            tte = pos.thisThread.engine.TT.probe(posKey, ttHitArray, stackForSS[ss].tt_entry());
             ttHit = ttHitArray[0];
             ttValue = ttHit ? value_from_tt(tte.value(), stackForSS[ss].ply) : Types.Value.VALUE_NONE;
             ttMove = rootNode ? thisThread.rootMoves.get(thisThread.PVIdx).pv.get(0) : ttHit ? tte.move() : Types.Move.MOVE_NONE;
@@ -5375,7 +6258,7 @@ public class ChessAlgorithm {
                     eval = stackForSS[ss].staticEval =
                             stackForSS[ss - 1].currentMove != Types.Move.MOVE_NULL ? Eval.evaluate(pos) : -stackForSS[ss - 1].staticEval + 2 * Eval.Tempo;
 
-                    tte.save(posKey, Types.Value.VALUE_NONE, Types.Bound.BOUND_NONE, Types.Depth.DEPTH_NONE, Types.Move.MOVE_NONE, stackForSS[ss].staticEval, tt.TT.generation());
+                    tte.save(posKey, Types.Value.VALUE_NONE, Types.Bound.BOUND_NONE, Types.Depth.DEPTH_NONE, Types.Move.MOVE_NONE, stackForSS[ss].staticEval, pos.thisThread.engine.TT.generation());
                 }
 
                 if (skipEarlyPruning || pos.st.nonPawnMaterial[pos.sideToMove] == 0) {
@@ -5437,7 +6320,7 @@ public class ChessAlgorithm {
                 if (!PvNode && depth >= 5 * Types.Depth.ONE_PLY && Math.abs(beta) < Types.Value.VALUE_MATE_IN_MAX_PLY) {
                     int rbeta = Math.min(beta + 200, Types.Value.VALUE_INFINITE);
 
-                    Movepick.MovePicker mp = new Movepick.MovePicker(pos, ttMove, rbeta - stackForSS[ss].staticEval, thisThread.captureHistory);
+                    Movepick.MovePicker mp = stackForSS[ss].move_picker().reset(pos, ttMove, rbeta - stackForSS[ss].staticEval, thisThread.captureHistory, stackForSS[ss].moves_buffer());
 
                     while ((move = mp.next_move(false)) != Types.Move.MOVE_NONE) {
                         if (pos.legal(move)) {
@@ -5459,7 +6342,7 @@ public class ChessAlgorithm {
                     int d = (3 * depth / (4 * Types.Depth.ONE_PLY) - 2) * Types.Depth.ONE_PLY;
                     search(NT, pos, stackForSS, ss, alpha, beta, d, cutNode, true);
 
-                    tte = tt.TT.probe(posKey, ttHitArray);
+                    tte = pos.thisThread.engine.TT.probe(posKey, ttHitArray, tte);
                     ttHit = ttHitArray[0];
                     ttMove = ttHit ? tte.move() : Types.Move.MOVE_NONE;
                 }
@@ -5467,10 +6350,13 @@ public class ChessAlgorithm {
             }
 
             // moves_loop:  When in check search starts from here
-            Movepick.PieceToHistory[] contHist = new Movepick.PieceToHistory[] {stackForSS[ss - 1].contHistory, stackForSS[ss - 2].contHistory, null, stackForSS[ss - 4].contHistory};
+            Movepick.PieceToHistory[] contHist = stackForSS[ss].contHist;
+            contHist[0] = stackForSS[ss - 1].contHistory;
+            contHist[1] = stackForSS[ss - 2].contHistory;
+            contHist[3] = stackForSS[ss - 4].contHistory;
             int countermove = thisThread.counterMoves.array[pos.board[prevSq]][prevSq];
 
-            Movepick.MovePicker mp = new Movepick.MovePicker(pos, ttMove, depth, thisThread.mainHistory, thisThread.captureHistory, contHist, countermove, stackForSS[ss].killers);
+            Movepick.MovePicker mp = stackForSS[ss].move_picker().reset(pos, ttMove, depth, thisThread.mainHistory, thisThread.captureHistory, contHist, countermove, stackForSS[ss].killers, stackForSS[ss].moves_buffer());
             value = bestValue;
             improving = stackForSS[ss].staticEval >= stackForSS[ss - 2].staticEval || stackForSS[ss - 2].staticEval == Types.Value.VALUE_NONE;
 
@@ -5643,7 +6529,7 @@ public class ChessAlgorithm {
                 pos.undo_move(move);
 
                 // Step 18.
-                if (thread.Threads.stop) {
+                if (thisThread.engine.Threads.stop) {
                     return Types.Value.VALUE_ZERO;
                 }
 
@@ -5667,7 +6553,7 @@ public class ChessAlgorithm {
                             rm.pv.add(stackForSS[ss + 1].pv[m]);
                         }
 
-                        if (moveCount > 1 && thisThread == thread.Threads.main()) {
+                        if (moveCount > 1 && thisThread == thisThread.engine.Threads.main()) {
                             ++((thread.MainThread) thisThread).bestMoveChanges;
                         }
                     } else {
@@ -5723,7 +6609,7 @@ public class ChessAlgorithm {
             }
 
             if (excludedMove == 0) {
-                tte.save(posKey, value_to_tt(bestValue, stackForSS[ss].ply), (bestValue >= beta ? Types.Bound.BOUND_LOWER : PvNode && bestMove != 0 ? Types.Bound.BOUND_EXACT : Types.Bound.BOUND_UPPER), depth, bestMove, stackForSS[ss].staticEval, tt.TT.generation());
+                tte.save(posKey, value_to_tt(bestValue, stackForSS[ss].ply), (bestValue >= beta ? Types.Bound.BOUND_LOWER : PvNode && bestMove != 0 ? Types.Bound.BOUND_EXACT : Types.Bound.BOUND_UPPER), depth, bestMove, stackForSS[ss].staticEval, pos.thisThread.engine.TT.generation());
             }
 
             return bestValue;
@@ -5733,8 +6619,8 @@ public class ChessAlgorithm {
         public static int qsearch(int NT, boolean InCheck, Position pos, Stack[] stackForSS, int ss, int alpha, int beta, int depth) {
             final boolean PvNode = NT == NodeType.PV;
 
-            int[] pv = new int[Types.MAX_PLY + 1];
-            Position.StateInfo st = new Position.StateInfo();
+            int[] pv = stackForSS[ss].pvBuffer;
+            Position.StateInfo st = stackForSS[ss].st;
             tt.TTEntry tte;
             long posKey;
             int ttMove, move, bestMove;
@@ -5759,8 +6645,8 @@ public class ChessAlgorithm {
 
             ttDepth = InCheck || depth >= Types.Depth.DEPTH_QS_CHECKS ? Types.Depth.DEPTH_QS_CHECKS : Types.Depth.DEPTH_QS_NO_CHECKS;
             posKey = pos.st.key;
-            boolean[] ttHitArray = new boolean[1];
-            tte = tt.TT.probe(posKey, ttHitArray);
+            boolean[] ttHitArray = stackForSS[ss].ttHit;
+            tte = pos.thisThread.engine.TT.probe(posKey, ttHitArray, stackForSS[ss].tt_entry());
             ttHit = ttHitArray[0];
             ttMove = ttHit ? tte.move() : Types.Move.MOVE_NONE;
             ttValue = ttHit ? value_from_tt(tte.value(), stackForSS[ss].ply) : Types.Value.VALUE_NONE;
@@ -5787,7 +6673,7 @@ public class ChessAlgorithm {
 
                 if (bestValue >= beta) {
                     if (!ttHit) {
-                        tte.save(posKey, value_to_tt(bestValue, stackForSS[ss].ply), Types.Bound.BOUND_LOWER, Types.Depth.DEPTH_NONE, Types.Move.MOVE_NONE, stackForSS[ss].staticEval, tt.TT.generation());
+                        tte.save(posKey, value_to_tt(bestValue, stackForSS[ss].ply), Types.Bound.BOUND_LOWER, Types.Depth.DEPTH_NONE, Types.Move.MOVE_NONE, stackForSS[ss].staticEval, pos.thisThread.engine.TT.generation());
                     }
 
                     return bestValue;
@@ -5800,7 +6686,7 @@ public class ChessAlgorithm {
                 futilityBase = bestValue + 128;
             }
 
-            Movepick.MovePicker mp = new Movepick.MovePicker(pos, ttMove, depth, pos.thisThread.mainHistory, pos.thisThread.captureHistory, (stackForSS[ss - 1].currentMove & 0x3F));
+            Movepick.MovePicker mp = stackForSS[ss].move_picker().reset(pos, ttMove, depth, pos.thisThread.mainHistory, pos.thisThread.captureHistory, (stackForSS[ss - 1].currentMove & 0x3F), stackForSS[ss].moves_buffer());
 
             while ((move = mp.next_move(false)) != Types.Move.MOVE_NONE) {
                 givesCheck = (move & (3 << 14)) == Types.MoveType.NORMAL && (pos.st.blockersForKing[(pos.sideToMove ^ Types.Color.BLACK)] & pos.byColorBB[pos.sideToMove]) == 0 ?
@@ -5851,7 +6737,7 @@ public class ChessAlgorithm {
                             alpha = value;
                             bestMove = move;
                         } else {
-                            tte.save(posKey, value_to_tt(value, stackForSS[ss].ply), Types.Bound.BOUND_LOWER, ttDepth, move, stackForSS[ss].staticEval, tt.TT.generation());
+                            tte.save(posKey, value_to_tt(value, stackForSS[ss].ply), Types.Bound.BOUND_LOWER, ttDepth, move, stackForSS[ss].staticEval, pos.thisThread.engine.TT.generation());
 
                             return value;
                         }
@@ -5863,7 +6749,7 @@ public class ChessAlgorithm {
                 return (-Types.Value.VALUE_MATE + stackForSS[ss].ply);
             }
 
-            tte.save(posKey, value_to_tt(bestValue, stackForSS[ss].ply), PvNode && bestValue > oldAlpha ? Types.Bound.BOUND_EXACT : Types.Bound.BOUND_UPPER, ttDepth, bestMove, stackForSS[ss].staticEval, tt.TT.generation());
+            tte.save(posKey, value_to_tt(bestValue, stackForSS[ss].ply), PvNode && bestValue > oldAlpha ? Types.Bound.BOUND_EXACT : Types.Bound.BOUND_UPPER, ttDepth, bestMove, stackForSS[ss].staticEval, pos.thisThread.engine.TT.generation());
 
             return bestValue;
         }
@@ -5894,8 +6780,10 @@ public class ChessAlgorithm {
         }
 
 
+        static final int[] ContinuationPlies = {1, 2, 4};
+
         public static void update_continuation_histories(Stack[] stackForSS, int ss, int pc, int to, int bonus) {
-            for (int i : new int[] {1, 2, 4}) {
+            for (int i : ContinuationPlies) {
                 if ((((stackForSS[ss - i].currentMove >>> 6) & 0x3F) != (stackForSS[ss - i].currentMove & 0x3F))) {
                     stackForSS[ss - i].contHistory.update(pc, to, bonus);
                 }
@@ -5962,26 +6850,7 @@ public class ChessAlgorithm {
 
 
         public static long perft(boolean Root, Position pos, int depth) {
-            Position.StateInfo st = new Position.StateInfo();
-            long cnt = 0;
-            long nodes = 0;
-            final boolean leaf = (depth == 2 * Types.Depth.ONE_PLY);
-
-            for (Movegen.ExtMove m : new Movegen.MoveList(Movegen.GenType.LEGAL, pos).moveList) {
-                if (Root && depth <= Types.Depth.ONE_PLY) {
-                    cnt = 1;
-                    nodes++;
-                } else {
-                    pos.do_move(m.move, st);
-                    cnt = leaf ? new Movegen.MoveList(Movegen.GenType.LEGAL, pos).size() : perft(false, pos, depth - Types.Depth.ONE_PLY);
-                    nodes += cnt;
-                    pos.undo_move(m.move);
-                }
-                if (Root) {
-//                    System.out.println(UCI.move(m.move, pos.chess960) + ": " + cnt);
-                }
-            }
-            return nodes;
+            return Perft.perft(pos, depth / Types.Depth.ONE_PLY, null, null);
         }
 
 
@@ -6008,10 +6877,10 @@ public class ChessAlgorithm {
         }
 
 
-        public static void clear() {
-            Timeman.Time.availableNodes = 0;
-            tt.TT.clear();
-            thread.Threads.clear();
+        public static void clear(Engine engine) {
+            engine.Time.availableNodes = 0;
+            engine.TT.clear();
+            engine.Threads.clear();
         }
     }
 
@@ -6045,41 +6914,114 @@ public class ChessAlgorithm {
 
     public static class thread {
 
-        public static ThreadPool Threads = new ThreadPool();
-
-        public static class Threadd {
+        public static class Threadd implements Runnable {
+            public final Engine engine;
             public int idx;
             public boolean searching = true;
+            private boolean exit = false;
+            private Thread stdThread;
 
             public Pawns.Table pawnsTable = new Pawns.Table();
             public Material.Table materialTable = new Material.Table();
-            public endgame.Endgames endgames = new endgame.Endgames();
+            public endgame.Endgames endgames = endgame.Endgames.instance();
+            public Eval.Evaluation evaluation = new Eval.Evaluation(pawnsTable, materialTable, endgames);
             public int PVIdx;
             public int selDepth, nmp_ply, nmp_odd;
             public long nodes, tbHits;
 
             public Position rootPos = new Position();
+            public Search.Stack[] stack = new Search.Stack[Types.MAX_PLY + 7];
             public Search.RootMoves rootMoves = new Search.RootMoves();
-            public int rootDepth, completedDepth;
+            public int rootDepth, completedDepth, completedMove;
             public Movepick.CounterMoveHistory counterMoves = new Movepick.CounterMoveHistory();
             public Movepick.ButterflyHistory mainHistory = new Movepick.ButterflyHistory();
             public Movepick.CapturePieceToHistory captureHistory = new Movepick.CapturePieceToHistory();
             public Movepick.ContinuationHistory contHistory = new Movepick.ContinuationHistory();
 
-            public Threadd(int n) {
+            public Threadd(Engine e, int n) {
+                engine = e;
                 idx = n;
+                for (int i = 0; i < stack.length; i++) {
+                    stack[i] = new Search.Stack();
+                }
+            }
+
+            public void resize_tables(int pawnEntries, int materialEntries) {
+                if (pawnsTable.size() != Integer.highestOneBit(pawnEntries) || materialTable.size() != Integer.highestOneBit(materialEntries)) {
+                    pawnsTable = new Pawns.Table(pawnEntries);
+                    materialTable = new Material.Table(materialEntries);
+                    evaluation = new Eval.Evaluation(pawnsTable, materialTable, endgames);
+                }
+            }
+
+            public void start_idle_loop() {
+                stdThread = new Thread(this, "Threadd-" + idx);
+                stdThread.setDaemon(true);
+                stdThread.start();
+                wait_for_search_finished();
+            }
+
+            @Override
+            public void run() {
+                idle_loop();
+            }
+
+            public void idle_loop() {
+                while (true) {
+                    synchronized (this) {
+                        searching = false;
+                        notifyAll();
+                        while (!searching) {
+                            try {
+                                wait();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                        if (exit) {
+                            return;
+                        }
+                    }
+                    search();
+                }
+            }
+
+            public synchronized void wait_for_search_finished() {
+                while (searching) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+
+            public void terminate() {
+                if (stdThread == null) {
+                    return;
+                }
+                synchronized (this) {
+                    exit = true;
+                    searching = true;
+                    notifyAll();
+                }
+                try {
+                    stdThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             }
 
             public int search() {
-                Search.Stack[] stack = new Search.Stack[Types.MAX_PLY + 7];
-                for (int i = 0; i < stack.length; i++) {
-                    stack[i] = new Search.Stack();
+                for (Search.Stack frame : stack) {
+                    frame.clear();
                 }
                 int ss = 4;
                 int bestValue, alpha, beta, delta;
                 int lastBestMove = Types.Move.MOVE_NONE;
                 int lastBestMoveDepth = Types.Depth.DEPTH_ZERO;
-                MainThread mainThread = (this == Threads.main() ? Threads.main() : null);
+                MainThread mainThread = (this == engine.Threads.main() ? engine.Threads.main() : null);
                 double timeReduction = 1.0;
 
                 for (int i = 4; i > 0; i--) {
@@ -6094,8 +7036,8 @@ public class ChessAlgorithm {
                     mainThread.bestMoveChanges = 0;
                 }
 
-                int multiPV = UCI.Options.get("MultiPV").convertToInteger();
-                Search.Skill skill = new Search.Skill(UCI.Options.get("Skill Level").convertToInteger());
+                int multiPV = engine.Options.get("MultiPV").convertToInteger();
+                Search.Skill skill = new Search.Skill(engine.Options.get("Skill Level").convertToInteger());
 
                 if (skill.enabled()) {
                     multiPV = Math.max(multiPV, 4);
@@ -6104,8 +7046,8 @@ public class ChessAlgorithm {
                 multiPV = Math.min(multiPV, rootMoves.size());
 
                 while ((rootDepth += Types.Depth.ONE_PLY) < Types.Depth.DEPTH_MAX &&
-                        !Threads.stop &&
-                        !(Search.Limits.depth != 0 && mainThread != null && rootDepth / Types.Depth.ONE_PLY > Search.Limits.depth)) {
+                        !engine.Threads.stop &&
+                        !(engine.Limits.depth != 0 && mainThread != null && rootDepth / Types.Depth.ONE_PLY > engine.Limits.depth)) {
 
                     if (idx != 0) {
                         int i = (idx - 1) % 20;
@@ -6123,7 +7065,7 @@ public class ChessAlgorithm {
                         rm.previousScore = rm.score;
                     }
 
-                    for (PVIdx = 0; PVIdx < multiPV && !Threads.stop; ++PVIdx) {
+                    for (PVIdx = 0; PVIdx < multiPV && !engine.Threads.stop; ++PVIdx) {
                         selDepth = 0;
 
                         if (rootDepth >= 5 * Types.Depth.ONE_PLY) {
@@ -6137,12 +7079,12 @@ public class ChessAlgorithm {
 
                             Collections.sort(rootMoves, Search.RootMove.RootMoveComparator);
 
-                            if (Threads.stop) {
+                            if (engine.Threads.stop) {
                                 break;
                             }
 
-                            if (mainThread != null && multiPV == 1 && (bestValue <= alpha || bestValue >= beta) && Timeman.Time.elapsed() > 3000) {
-//                                System.out.println(UCI.pv(rootPos, rootDepth, alpha, beta));
+                            if (mainThread != null && multiPV == 1 && (bestValue <= alpha || bestValue >= beta) && engine.Time.elapsed() > 3000 && engine.Output != null) {
+                                engine.Output.println(UCI.pv(rootPos, rootDepth, alpha, beta));
                             }
 
                             if (bestValue <= alpha) {
@@ -6151,7 +7093,7 @@ public class ChessAlgorithm {
 
                                 if (mainThread != null) {
                                     mainThread.failedLow = true;
-                                    Threads.stopOnPonderhit = false;
+                                    engine.Threads.stopOnPonderhit = false;
                                 }
                             } else if (bestValue >= beta) {
                                 beta = Math.min(bestValue + delta, Types.Value.VALUE_INFINITE);
@@ -6162,13 +7104,14 @@ public class ChessAlgorithm {
                             delta += delta / 4 + 5;
                         }
 
-                        if (mainThread != null && (Threads.stop || PVIdx + 1 == multiPV || Timeman.Time.elapsed() > 3000)) {
-//                            System.out.println(UCI.pv(rootPos, rootDepth, alpha, beta));
+                        if (mainThread != null && (engine.Threads.stop || PVIdx + 1 == multiPV || engine.Time.elapsed() > 3000) && engine.Output != null) {
+                            engine.Output.println(UCI.pv(rootPos, rootDepth, alpha, beta));
                         }
                     }
 
-                    if (!Threads.stop) {
+                    if (!engine.Threads.stop) {
                         completedDepth = rootDepth;
+                        completedMove = rootMoves.get(0).pv.get(0);
                     }
 
                     if (rootMoves.get(0).pv.get(0) != lastBestMove) {
@@ -6176,10 +7119,10 @@ public class ChessAlgorithm {
                         lastBestMoveDepth = rootDepth;
                     }
 
-                    if (Search.Limits.mate != 0 &&
+                    if (engine.Limits.mate != 0 &&
                             bestValue >= Types.Value.VALUE_MATE_IN_MAX_PLY &&
-                            Types.Value.VALUE_MATE - bestValue <= 2 * Search.Limits.mate) {
-                        Threads.stop = true;
+                            Types.Value.VALUE_MATE - bestValue <= 2 * engine.Limits.mate) {
+                        engine.Threads.stop = true;
                     }
 
                     if (mainThread == null) {
@@ -6187,17 +7130,17 @@ public class ChessAlgorithm {
                     }
 
                     if (skill.enabled() && skill.time_to_pick(rootDepth)) {
-                        skill.pick_best(multiPV);
+                        skill.pick_best(rootMoves, multiPV);
                     }
 
-                    if (Search.Limits.use_time_management()) {
-                        if (!Threads.stop && !Threads.stopOnPonderhit) {
+                    if (engine.Limits.use_time_management()) {
+                        if (!engine.Threads.stop && !engine.Threads.stopOnPonderhit) {
                             final int[] F = {(mainThread.failedLow ? 1 : 0), (bestValue - mainThread.previousScore)};
                             int improvingFactor = Math.max(229, Math.min(715, 357 + 119 * F[0] - 6 * F[1]));
 
                             int us = rootPos.sideToMove;
                             boolean thinkHard = bestValue == Types.Value.VALUE_DRAW &&
-                                    Search.Limits.time[us] - Timeman.Time.elapsed() > Search.Limits.time[(us ^ Types.Color.BLACK)] &&
+                                    engine.Limits.time[us] - engine.Time.elapsed() > engine.Limits.time[(us ^ Types.Color.BLACK)] &&
                                     Search.pv_is_draw(rootPos);
 
                             double unstablePvFactor = 1 + mainThread.bestMoveChanges + (thinkHard ? 1 : 0);
@@ -6211,11 +7154,11 @@ public class ChessAlgorithm {
 
                             unstablePvFactor *= Math.pow(mainThread.previousTimeReduction, 0.51) / timeReduction;
 
-                            if (rootMoves.size() == 1 || Timeman.Time.elapsed() > Timeman.Time.optimum() * unstablePvFactor * improvingFactor / 628) {
-                                if (Threads.ponder) {
-                                    Threads.stopOnPonderhit = true;
+                            if (rootMoves.size() == 1 || engine.Time.elapsed() > engine.Time.optimum() * unstablePvFactor * improvingFactor / 628) {
+                                if (engine.Threads.ponder) {
+                                    engine.Threads.stopOnPonderhit = true;
                                 } else {
-                                    Threads.stop = true;
+                                    engine.Threads.stop = true;
                                 }
                             }
                         }
@@ -6230,7 +7173,7 @@ public class ChessAlgorithm {
 
                 if (skill.enabled()) {
                     int swapIndex = 0;
-                    int moveToSwap = skill.best != 0 ? skill.best : skill.pick_best(multiPV);
+                    int moveToSwap = skill.best != 0 ? skill.best : skill.pick_best(rootMoves, multiPV);
                     for (int i = 1; i < rootMoves.size(); i++) {
                         if (rootMoves.get(i).operatorEquals(moveToSwap)) {
                             swapIndex = i;
@@ -6261,8 +7204,11 @@ public class ChessAlgorithm {
 
 
             public int start_searching() {
-                searching = true;
-                return search();
+                synchronized (this) {
+                    searching = true;
+                    notifyAll();
+                }
+                return Types.Move.MOVE_NONE;
             }
         }
 
@@ -6273,50 +7219,74 @@ public class ChessAlgorithm {
             public int previousScore;
             public int callsCnt;
 
-            public MainThread(int n) {
-                super(n);
+            public MainThread(Engine e, int n) {
+                super(e, n);
+            }
+
+            @Override
+            public int start_searching() {
+                searching = true;
+                int bestMove = search();
+                searching = false;
+                return bestMove;
             }
 
             @Override
             public int search() {
-                if (Search.Limits.perft != 0) {
-                    nodes = Search.perft(true, rootPos, Search.Limits.perft * Types.Depth.ONE_PLY);
-//                    System.out.println("\nNodes searched: " + nodes + "\n");
+                if (engine.Limits.perft != 0) {
+                    nodes = Search.perft(true, rootPos, engine.Limits.perft * Types.Depth.ONE_PLY);
+                    if (engine.Output != null) {
+                        engine.Output.println("\nNodes searched: " + nodes + "\n");
+                    }
                     return Types.Move.MOVE_NONE;
                 }
 
                 int us = rootPos.sideToMove;
-                Timeman.Time.init(Search.Limits, us, rootPos.gamePly);
-                tt.TT.new_search();
+                engine.Time.init(engine.Limits, us, rootPos.gamePly);
+                engine.TT.new_search();
 
-                int contempt = UCI.Options.get("Contempt").convertToInteger() * Types.Value.PawnValueEg / 100;
+                int contempt = engine.Options.get("Contempt").convertToInteger() * Types.Value.PawnValueEg / 100;
 
-                Eval.Contempt = (us == Types.Color.WHITE ? (((contempt / 2) << 16) | (contempt & 0xffff)) : -(((contempt / 2) << 16) | (contempt & 0xffff)));
+                engine.Contempt = (us == Types.Color.WHITE ? (((contempt / 2) << 16) | (contempt & 0xffff)) : -(((contempt / 2) << 16) | (contempt & 0xffff)));
 
                 if (rootMoves.isEmpty()) {
                     rootMoves.add(new Search.RootMove(Types.Move.MOVE_NONE));
-//                    System.out.println("info depth 0 score " + UCI.value(rootPos.st.checkersBB != 0 ? -Types.Value.VALUE_MATE : Types.Value.VALUE_DRAW));
+                    if (engine.Output != null) {
+                        engine.Output.println("info depth 0 score " + UCI.value(rootPos.st.checkersBB != 0 ? -Types.Value.VALUE_MATE : Types.Value.VALUE_DRAW));
+                    }
                 } else {
+                    for (Threadd th : engine.Threads) {
+                        if (th != this) {
+                            th.start_searching();
+                        }
+                    }
+
                     super.search();
                 }
 
-                Threads.stopOnPonderhit = true;
+                engine.Threads.stopOnPonderhit = true;
+
+                while (!engine.Threads.stop && (engine.Threads.ponder || engine.Limits.infinite != 0)) {}
 
-                while (!Threads.stop && (Threads.ponder || Search.Limits.infinite != 0)) {}
+                engine.Threads.stop = true;
 
-                Threads.stop = true;
+                for (Threadd th : engine.Threads) {
+                    if (th != this) {
+                        th.wait_for_search_finished();
+                    }
+                }
 
-                if (Search.Limits.npmsec != 0) {
-                    Timeman.Time.availableNodes += Search.Limits.inc[us] - Threads.nodes_searched();
+                if (engine.Limits.npmsec != 0) {
+                    engine.Time.availableNodes += engine.Limits.inc[us] - engine.Threads.nodes_searched();
                 }
 
                 Threadd bestThread = this;
-                if (UCI.Options.get("MultiPV").convertToInteger() == 1 &&
-                        Search.Limits.depth == 0 &&
-                        !(new Search.Skill(UCI.Options.get("Skill Level").convertToInteger())).enabled() &&
+                if (engine.Options.get("MultiPV").convertToInteger() == 1 &&
+                        engine.Limits.depth == 0 &&
+                        !(new Search.Skill(engine.Options.get("Skill Level").convertToInteger())).enabled() &&
                         rootMoves.get(0).pv.get(0) != Types.Move.MOVE_NONE) {
 
-                    for (Threadd th : Threads) {
+                    for (Threadd th : engine.Threads) {
                         int depthDiff = th.completedDepth - bestThread.completedDepth;
                         int scoreDiff = th.rootMoves.get(0).score - bestThread.rootMoves.get(0).score;
 
@@ -6328,17 +7298,28 @@ public class ChessAlgorithm {
 
                 previousScore = bestThread.rootMoves.get(0).score;
 
-                if (bestThread != this) {
-//                    System.out.println(UCI.pv(bestThread.rootPos, bestThread.completedDepth, -Types.Value.VALUE_INFINITE, Types.Value.VALUE_INFINITE));
+                if (bestThread != this && engine.Output != null) {
+                    engine.Output.println(UCI.pv(bestThread.rootPos, bestThread.completedDepth, -Types.Value.VALUE_INFINITE, Types.Value.VALUE_INFINITE));
+                }
+
+                int bestMove = bestThread.rootMoves.get(0).pv.get(0);
+
+                if (engine.Limits.deadline != 0 && bestThread.completedMove != Types.Move.MOVE_NONE) {
+                    bestMove = bestThread.completedMove;
                 }
 
-//                controller.playTheBestMove(bestThread.rootMoves.get(0).pv.get(0));
-                return bestThread.rootMoves.get(0).pv.get(0);
-//                System.out.println("bestmove " + UCI.move(bestThread.rootMoves.get(0).pv.get(0), rootPos.chess960));
+                if (engine.Output != null) {
+                    String ponder = "";
 
-//                if (bestThread.rootMoves.get(0).pv.size() > 1 || bestThread.rootMoves.get(0).extract_ponder_from_tt(rootPos)) {
-//                    System.out.println("ponder " + UCI.move(bestThread.rootMoves.get(0).pv.get(1), rootPos.chess960));
-//                }
+                    if (bestMove == bestThread.rootMoves.get(0).pv.get(0) &&
+                            (bestThread.rootMoves.get(0).pv.size() > 1 || bestThread.rootMoves.get(0).extract_ponder_from_tt(rootPos))) {
+                        ponder = " ponder " + UCI.move(bestThread.rootMoves.get(0).pv.get(1), rootPos.chess960);
+                    }
+
+                    engine.Output.println("bestmove " + UCI.move(bestMove, rootPos.chess960) + ponder);
+                }
+
+                return bestMove;
             }
 
 
@@ -6348,51 +7329,69 @@ public class ChessAlgorithm {
                     return;
                 }
 
-                callsCnt = Search.Limits.nodes != 0 ? Math.min(4096, ((int) (Search.Limits.nodes / 1024))) : 4096;
+                int elapsed = engine.Time.elapsed();
 
-                int elapsed = Timeman.Time.elapsed();
-                long tick = Search.Limits.startTime + elapsed;
+                if (engine.Limits.nodes != 0) {
+                    callsCnt = Math.min(4096, ((int) (engine.Limits.nodes / 1024)));
+                } else if ((engine.Limits.movetime | engine.Limits.deadline) != 0) {
+                    callsCnt = Math.max(64, Math.min(4096, (int) (nodes / (elapsed + 1))));
+                } else {
+                    callsCnt = 4096;
+                }
+                long tick = engine.Limits.startTime + elapsed;
 
                 if (tick - lastInfoTime >= 1000) {
                     lastInfoTime = tick;
                 }
 
-                if (Threads.ponder) {
+                if (engine.Threads.ponder) {
                     return;
                 }
 
-                if ((Search.Limits.use_time_management() && elapsed > Timeman.Time.maximum() - 10) ||
-                        (Search.Limits.movetime != 0 && elapsed >= Search.Limits.movetime) ||
-                        (Search.Limits.nodes != 0 && Threads.nodes_searched() >= Search.Limits.nodes)) {
-                    Threads.stop = true;
+                if ((engine.Limits.use_time_management() && elapsed > engine.Time.maximum() - 10) ||
+                        (engine.Limits.movetime != 0 && elapsed >= engine.Limits.movetime) ||
+                        (engine.Limits.deadline != 0 && elapsed >= engine.Time.deadline()) ||
+                        (engine.Limits.nodes != 0 && engine.Threads.nodes_searched() >= engine.Limits.nodes)) {
+                    engine.Threads.stop = true;
                 }
             }
         }
 
 
-        public static class ThreadPool extends ArrayList<MainThread> {
+        public static class ThreadPool extends ArrayList<Threadd> {
 
             private static final long serialVersionUID = -7673929655024240259L;
 
-            public boolean stop, ponder, stopOnPonderhit;
+            public final Engine engine;
+
+            public volatile boolean stop, ponder, stopOnPonderhit;
+            public volatile long searchId;
+            private long stopRequest;
 
             private Position.StateListPtr setupStates = new Position.StateListPtr();
 
+            public ThreadPool(Engine e) {
+                engine = e;
+            }
+
             public void start_thinking(Position pos, Position.StateListPtr states, Search.LimitsType limits) {
                 start_thinking(pos, states, limits, false);
             }
 
             public int start_thinking(Position pos, Position.StateListPtr states, Search.LimitsType limits, boolean ponderMode) {
-                stopOnPonderhit = stop = false;
+                synchronized (this) {
+                    stop = ++searchId == stopRequest;
+                    stopOnPonderhit = false;
+                }
                 ponder = ponderMode;
-                Search.Limits = limits;
+                engine.Limits = limits;
                 Search.RootMoves rootMoves = new Search.RootMoves();
 
                 Movegen.MoveList moveListObject = new Movegen.MoveList(Movegen.GenType.LEGAL, pos);
                 for (int i = 0; i < moveListObject.size(); i++) {
-                    Movegen.ExtMove m = moveListObject.moveList[i];
-                    if (limits.searchmoves.isEmpty() || limits.searchmoves.contains(m.move)) {
-                        rootMoves.add(new Search.RootMove(m.move));
+                    int m = moveListObject.get(i);
+                    if (limits.searchmoves.isEmpty() || limits.searchmoves.contains(m)) {
+                        rootMoves.add(new Search.RootMove(m));
                     }
                 }
 
@@ -6413,26 +7412,79 @@ public class ChessAlgorithm {
                     th.nmp_odd = 0;
                     th.rootDepth = Types.Depth.DEPTH_ZERO;
                     th.completedDepth = Types.Depth.DEPTH_ZERO;
-                    th.rootMoves = rootMoves;
-//                    th.rootPos.set(pos.fen(), pos.chess960, setupStates.getLast(), th);
-                    th.rootPos = pos;
+                    th.completedMove = Types.Move.MOVE_NONE;
+
+                    if (th == main()) {
+                        th.rootMoves = rootMoves;
+                        th.rootPos = pos;
+                        pos.thisThread = th;
+                    } else {
+                        th.rootMoves = new Search.RootMoves();
+                        for (Search.RootMove rm : rootMoves) {
+                            th.rootMoves.add(new Search.RootMove(rm.pv.get(0)));
+                        }
+                        th.rootPos.set(pos.fen(), pos.chess960, new Position.StateInfo(), th);
+                        th.rootPos.st = pos.st;
+                    }
                 }
 
                 setupStates.removeLast();
                 setupStates.add(tmp);
 
-                return main().start_searching();
+                ScheduledFuture<?> watchdog = limits.deadline != 0 ? engine.Time.start_watchdog(limits) : null;
+                try {
+                    return main().start_searching();
+                } finally {
+                    if (watchdog != null) {
+                        watchdog.cancel(false);
+                    }
+                }
             }
 
 
-            public void set() {
-                add(new MainThread(0));
+            // Stops the search numbered id (see searchId): at once if it is running, or as soon as start_thinking()
+            // starts it, so a stop sent just before the search begins is not lost
+            public synchronized void stop(long id) {
+                stopRequest = id;
+                if (searchId == id) {
+                    stop = true;
+                }
+            }
+
+
+            public void set(int requested) {
+                while (size() > Math.max(requested, 1)) {
+                    remove(size() - 1).terminate();
+                }
+
+                if (isEmpty()) {
+                    add(new MainThread(engine, 0));
+                }
+
+                while (size() < requested) {
+                    Threadd th = new Threadd(engine, size());
+                    th.start_idle_loop();
+                    add(th);
+                }
+
+                resize_tables();
                 clear();
             }
 
 
+            public void resize_tables() {
+                int pawnEntries = engine.Options.get("Pawn Table Size").convertToInteger();
+                int materialEntries = engine.Options.get("Material Table Size").convertToInteger();
+                for (Threadd th : this) {
+                    th.resize_tables(pawnEntries, materialEntries);
+                }
+            }
+
+
             public void clear() {
-                main().clear();
+                for (Threadd th : this) {
+                    th.clear();
+                }
 
                 main().callsCnt = 0;
                 main().previousScore = Types.Value.VALUE_INFINITE;
@@ -6441,7 +7493,7 @@ public class ChessAlgorithm {
 
 
             public MainThread main() {
-                return get(0);
+                return (MainThread) get(0);
             }
 
             public long nodes_searched() {
@@ -6459,6 +7511,27 @@ public class ChessAlgorithm {
                 }
                 return sum;
             }
+
+            // {probes, hits, replaces} summed over all threads
+            public long[] pawn_table_counters() {
+                long[] sum = new long[3];
+                for (Threadd th : this) {
+                    sum[0] += th.pawnsTable.probes;
+                    sum[1] += th.pawnsTable.hits;
+                    sum[2] += th.pawnsTable.replaces;
+                }
+                return sum;
+            }
+
+            public long[] material_table_counters() {
+                long[] sum = new long[3];
+                for (Threadd th : this) {
+                    sum[0] += th.materialTable.probes;
+                    sum[1] += th.materialTable.hits;
+                    sum[2] += th.materialTable.replaces;
+                }
+                return sum;
+            }
         }
     }
 
@@ -6466,20 +7539,37 @@ public class ChessAlgorithm {
 
     public static class Timeman {
 
-        public static TimeManagement Time = new TimeManagement();
+        // Sets Threads.stop when a hard deadline expires, even if the searching thread is
+        // deep in a subtree and still far from its next check_time().
+        public static final ScheduledThreadPoolExecutor Watchdog = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "BOMG-Stockfish9 watchdog");
+            t.setDaemon(true);
+            t.setPriority(Thread.MAX_PRIORITY);
+            return t;
+        });
+
+        static {
+            Watchdog.setRemoveOnCancelPolicy(true);
+        }
 
         public static class TimeManagement {
-            private long startTime;
+            private final Engine engine;
+            private long startNanos;
             private int optimumTime;
             private int maximumTime;
+            private int deadlineTime;
 
             public long availableNodes = 0;
 
+            public TimeManagement(Engine e) {
+                engine = e;
+            }
+
             public void init(Search.LimitsType limits, int us, int ply) {
-                int minThinkingTime = UCI.Options.get("Minimum Thinking Time").convertToInteger();
-                int moveOverhead    = UCI.Options.get("Move Overhead").convertToInteger();
-                int slowMover       = UCI.Options.get("Slow Mover").convertToInteger();
-                int npmsec          = UCI.Options.get("nodestime").convertToInteger();
+                int minThinkingTime = engine.Options.get("Minimum Thinking Time").convertToInteger();
+                int moveOverhead    = engine.Options.get("Move Overhead").convertToInteger();
+                int slowMover       = engine.Options.get("Slow Mover").convertToInteger();
+                int npmsec          = engine.Options.get("nodestime").convertToInteger();
 
                 if (npmsec != 0) {
                     if (availableNodes == 0) {
@@ -6491,7 +7581,8 @@ public class ChessAlgorithm {
                     limits.npmsec = npmsec;
                 }
 
-                startTime = limits.startTime;
+                startNanos = limits.startNanos;
+                deadlineTime = stop_time(limits);
                 optimumTime = maximumTime = Math.max(limits.time[us], minThinkingTime);
 
                 final int MaxMTG = limits.movestogo != 0 ? Math.min(limits.movestogo, MoveHorizon) : MoveHorizon;
@@ -6508,7 +7599,7 @@ public class ChessAlgorithm {
                     maximumTime = Math.min(t2, maximumTime);
                 }
 
-                if (UCI.Options.get("Ponder").convertToInteger() != 0) {
+                if (engine.Options.get("Ponder").convertToInteger() != 0) {
                     optimumTime += optimumTime / 4;
                 }
             }
@@ -6521,8 +7612,30 @@ public class ChessAlgorithm {
                 return maximumTime;
             }
 
+            public int deadline() {
+                return deadlineTime;
+            }
+
             public int elapsed() {
-                return (int) (Search.Limits.npmsec != 0 ? thread.Threads.nodes_searched() : (System.currentTimeMillis() - startTime));
+                return (int) (engine.Limits.npmsec != 0 ? engine.Threads.nodes_searched() : (System.nanoTime() - startNanos) / 1000000);
+            }
+
+            // The search is stopped "Move Overhead" ms before the deadline, so that unwinding
+            // and returning the move fit in it, but never earlier than half of the deadline.
+            public int stop_time(Search.LimitsType limits) {
+                int moveOverhead = engine.Options.get("Move Overhead").convertToInteger();
+                return Math.max(limits.deadline - moveOverhead, limits.deadline / 2);
+            }
+
+            public ScheduledFuture<?> start_watchdog(Search.LimitsType limits) {
+                final thread.ThreadPool threads = engine.Threads;
+                final long id = threads.searchId;
+                long delay = limits.startNanos + stop_time(limits) * 1000000L - System.nanoTime();
+                return Watchdog.schedule(() -> {
+                    if (threads.searchId == id) {
+                        threads.stop = true;
+                    }
+                }, Math.max(delay, 0), TimeUnit.NANOSECONDS);
             }
         }
 
@@ -6564,88 +7677,250 @@ public class ChessAlgorithm {
 
     public static class tt {
 
-        public static TranspositionTable TT = new TranspositionTable();
 
 
         public static class TranspositionTable {
             public static final int CacheLineSize = 64;
             public static final int ClusterSize = 3;
+            public static final int ClusterBytes = 32;
+            private static final int PageShift = 25;
+            private static final int PageMask = (1 << PageShift) - 1;
 
-            private int clusterCount;
-            private Cluster[] table;
+            private static final VarHandle WORD = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+            // Snapshot file: a CacheLineSize header (magic, clusterCount, generation8) followed by the pages as they are in memory
+            private static final long FileMagic = 0x424F4D4754540001L;
+            private static final int HeaderBytes = CacheLineSize;
+
+            private long clusterCount;
+            private ByteBuffer[] table;
             private int generation8;
+            private MappedByteBuffer header;
+            private Path mappedPath;
 
-            public static class Cluster {
-                public TTEntry[] entry = new TTEntry[ClusterSize];
-                public char[] padding = new char[2];
-                public Cluster() {
-                    for (int i = 0; i < entry.length; i++) {
-                        entry[i] = new TTEntry();
-                    }
-                }
+            // A cluster is ClusterBytes long: one data word per entry, then one word with the three key16 fields.
+            // Data word layout: move16 | value16 << 16 | eval16 << 32 | genBound8 << 48 | depth8 << 56
+            // Each key16 is stored XORed with a fold of its data word, so an entry torn by a concurrent
+            // writer decodes to a wrong key and is rejected instead of being returned for another position.
+
+            static int fold16(long data) {
+                return (int) (data ^ (data >>> 16) ^ (data >>> 32) ^ (data >>> 48)) & 0xffff;
+            }
+
+            static long load(ByteBuffer page, int offset) {
+                return (long) WORD.getOpaque(page, offset);
+            }
+
+            static void store(ByteBuffer page, int offset, long word) {
+                WORD.setOpaque(page, offset, word);
+            }
+
+            static int key16(ByteBuffer page, int cluster, int i, long data) {
+                return ((int) (load(page, cluster + ClusterSize * 8) >>> (16 * i)) & 0xffff) ^ fold16(data);
+            }
+
+            static void store_key16(ByteBuffer page, int cluster, int i, int key16, long data) {
+                final int offset = cluster + ClusterSize * 8;
+                final long lane = (long) (key16 ^ fold16(data)) << (16 * i);
+                long keys;
+
+                do {
+                    keys = load(page, offset);
+                } while (!WORD.compareAndSet(page, offset, keys, (keys & ~(0xffffL << (16 * i))) | lane));
             }
 
             public void resize(int mbSize) {
-                int newClusterCount = 2 * 1024 * 1024 / 32;
+                long newClusterCount = (long) mbSize * 1024 * 1024 / ClusterBytes;
 
-                if (newClusterCount == clusterCount) {
+                if (newClusterCount == clusterCount && header == null) {
                     return;
                 }
 
+                allocate(newClusterCount);
+                clear();
+            }
+
+            private void allocate(long newClusterCount) {
                 clusterCount = newClusterCount;
-//                table = new Cluster[clusterCount];
-//                for (int i = 0; i < table.length; i++) {
-//                    table[i] = new Cluster();
-//                }
+                header = null;
+                mappedPath = null;
+
+                // Pages are limited to 1 GB each so the table can grow past the 2^31 byte limit of a single buffer
+                table = null;
+                table = new ByteBuffer[page_count(clusterCount)];
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = ByteBuffer.allocateDirect(page_bytes(clusterCount, i) + CacheLineSize).alignedSlice(CacheLineSize).order(ByteOrder.nativeOrder());
+                }
+            }
+
+            private static int page_count(long clusterCount) {
+                return (int) ((clusterCount + PageMask) >>> PageShift);
+            }
+
+            private static int page_bytes(long clusterCount, int i) {
+                return (int) Math.min(PageMask + 1, clusterCount - ((long) i << PageShift)) * ClusterBytes;
+            }
+
+            private static long read_header(ByteBuffer head, long fileSize) throws IOException {
+                if (fileSize < HeaderBytes || head.getLong(0) != FileMagic) {
+                    throw new IOException("Not a transposition table file");
+                }
+
+                long count = head.getLong(8);
+                if (count <= 0 || fileSize < HeaderBytes + count * ClusterBytes) {
+                    throw new IOException("Truncated transposition table file");
+                }
+                return count;
+            }
+
+            private void write_header(ByteBuffer head) {
+                head.putLong(0, FileMagic);
+                head.putLong(8, clusterCount);
+                head.putInt(16, generation8);
+            }
+
+            public void save(Path path) throws IOException {
+                if (header != null && path.equals(mappedPath)) {
+                    write_header(header);
+                    for (ByteBuffer page : table) {
+                        ((MappedByteBuffer) page).force();
+                    }
+                    header.force();
+                    return;
+                }
+
+                try (FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long position = HeaderBytes;
+                    for (int i = 0; i < table.length; i++) {
+                        int bytes = page_bytes(clusterCount, i);
+                        MappedByteBuffer out = fc.map(FileChannel.MapMode.READ_WRITE, position, bytes);
+                        out.put(table[i].duplicate().position(0).limit(bytes));
+                        out.force();
+                        position += bytes;
+                    }
+
+                    MappedByteBuffer head = fc.map(FileChannel.MapMode.READ_WRITE, 0, HeaderBytes);
+                    head.order(ByteOrder.nativeOrder());
+                    write_header(head);
+                    head.force();
+                }
+            }
+
+            public void load(Path path) throws IOException {
+                try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+                    MappedByteBuffer head = fc.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fc.size(), HeaderBytes));
+                    head.order(ByteOrder.nativeOrder());
+                    long count = read_header(head, fc.size());
+
+                    if (count != clusterCount || header != null) {
+                        allocate(count);
+                    }
+
+                    long position = HeaderBytes;
+                    for (int i = 0; i < table.length; i++) {
+                        int bytes = page_bytes(clusterCount, i);
+                        table[i].duplicate().position(0).put(fc.map(FileChannel.MapMode.READ_ONLY, position, bytes));
+                        position += bytes;
+                    }
+
+                    generation8 = head.getInt(16) & 0xFC;
+                }
+            }
+
+            // The table itself lives in the file, so it survives restarts without an explicit save().
+            // An existing snapshot is reused as is, otherwise the file is created with the current size.
+            public void map(Path path) throws IOException {
+                try (FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    boolean warm = fc.size() > 0;
+                    MappedByteBuffer head = fc.map(FileChannel.MapMode.READ_WRITE, 0, HeaderBytes);
+                    head.order(ByteOrder.nativeOrder());
+                    long count = warm ? read_header(head, fc.size()) : clusterCount;
+
+                    ByteBuffer[] pages = new ByteBuffer[page_count(count)];
+                    long position = HeaderBytes;
+                    for (int i = 0; i < pages.length; i++) {
+                        int bytes = page_bytes(count, i);
+                        pages[i] = fc.map(FileChannel.MapMode.READ_WRITE, position, bytes).order(ByteOrder.nativeOrder());
+                        position += bytes;
+                    }
+
+                    table = pages;
+                    clusterCount = count;
+                    header = head;
+                    mappedPath = path;
+
+                    if (warm) {
+                        generation8 = head.getInt(16) & 0xFC;
+                    } else {
+                        write_header(head);
+                    }
+                }
             }
 
             public void clear() {
-                table = new Cluster[clusterCount];
-                for (int i = 0; i < table.length; i++) {
-                    table[i] = new Cluster();
+                for (ByteBuffer page : table) {
+                    for (int i = 0; i + 8 <= page.capacity(); i += 8) {
+                        page.putLong(i, 0L);
+                    }
                 }
             }
 
             public void new_search() {
                 generation8 += 4;
                 generation8 = generation8 & 0xff;
+
+                if (header != null) {
+                    header.putInt(16, generation8);
+                }
             }
 
             public int generation() {
                 return generation8;
             }
 
-            public TTEntry probe(long key, boolean[] found) {
-                TTEntry[] tte = first_entry(key);
+            // Points tte at the entry for key, or at the entry to replace when key is not in the table
+            public TTEntry probe(long key, boolean[] found, TTEntry tte) {
+                long idx = first_entry(key);
+                ByteBuffer page = table[(int) (idx >>> PageShift)];
+                int cluster = (int) (idx & PageMask) * ClusterBytes;
                 final int key16 = (int) (key >>> 48);
 
                 for (int i = 0; i < ClusterSize; ++i) {
-                    if (tte[i].key16 == 0 || tte[i].key16 == key16) {
-                        if ((tte[i].genBound8 & 0xFC) != generation8 && tte[i].key16 != 0) {
-                            tte[i].genBound8 = 0xff & (generation8 | tte[i].bound());
+                    long data = load(page, cluster + 8 * i);
+                    int k = key16(page, cluster, i, data);
+                    if (k == 0 || k == key16) {
+                        int genBound8 = (int) (data >>> 48) & 0xff;
+                        if ((genBound8 & 0xFC) != generation8 && k != 0) {
+                            data = (data & ~(0xffL << 48)) | ((long) (0xff & (generation8 | (genBound8 & 0x3))) << 48);
+                            store(page, cluster + 8 * i, data);
+                            store_key16(page, cluster, i, k, data);
                         }
 
-                        found[0] = tte[i].key16 != 0;
-                        return  tte[i];
+                        found[0] = k != 0;
+                        return tte.set(page, cluster, i, key16, data);
                     }
                 }
 
-                TTEntry replace = tte[0];
-                for (int i = 1; i < ClusterSize; ++i) {
-                    if (replace.depth8 - ((259 + generation8 - replace.genBound8) & 0xFC) * 2 > tte[i].depth8 - ((259 + generation8 -   tte[i].genBound8) & 0xFC) * 2) {
-                        replace = tte[i];
+                int replace = 0;
+                int replaceWorth = 0;
+                for (int i = 0; i < ClusterSize; ++i) {
+                    long data = load(page, cluster + 8 * i);
+                    int worth = (byte) (data >>> 56) - ((259 + generation8 - ((int) (data >>> 48) & 0xff)) & 0xFC) * 2;
+                    if (i == 0 || replaceWorth > worth) {
+                        replace = i;
+                        replaceWorth = worth;
                     }
                 }
                 found[0] = false;
-                return replace;
+                return tte.set(page, cluster, replace, key16, load(page, cluster + 8 * replace));
             }
 
             public int hashfull() {
                 int cnt = 0;
                 for (int i = 0; i < 1000 / ClusterSize; i++) {
-                    final TTEntry[] tte = table[i].entry;
                     for (int j = 0; j < ClusterSize; j++) {
-                        if ((tte[j].genBound8 & 0xFC) == generation8) {
+                        if ((((int) (table[0].getLong(i * ClusterBytes + 8 * j) >>> 48) & 0xff) & 0xFC) == generation8) {
                             cnt++;
                         }
                     }
@@ -6653,52 +7928,73 @@ public class ChessAlgorithm {
                 return cnt;
             }
 
-            public TTEntry[] first_entry(long key) {
-                return table[(int) (((key & 0xffffffffL) * clusterCount) >>> 32)].entry;
+            public long first_entry(long key) {
+                return ((key & 0xffffffffL) * clusterCount) >>> 32;
             }
         }
 
 
+        // A reusable view of one table slot, re-pointed by every probe() that is given it
         public static class TTEntry {
+            private ByteBuffer page;
+            private int cluster;
+            private int i;
             private int key16;
-            private int move16;
-            private int value16;
-            private int eval16;
-            private int genBound8;
-            private int depth8;
+            private long probed;
+
+            TTEntry set(ByteBuffer page, int cluster, int i, int key16, long probed) {
+                this.page = page;
+                this.cluster = cluster;
+                this.i = i;
+                this.key16 = key16;
+                this.probed = probed;
+                return this;
+            }
+
+            private long data() {
+                long data = TranspositionTable.load(page, cluster + 8 * i);
+                return TranspositionTable.key16(page, cluster, i, data) == key16 ? data : probed;
+            }
 
             public int move() {
-                return move16;
+                return (int) data() & 0xffff;
             }
 
             public int value() {
-                return value16;
+                return (short) (data() >>> 16);
             }
 
             public int eval() {
-                return eval16;
+                return (short) (data() >>> 32);
             }
 
             public int depth() {
-                return depth8 * Types.Depth.ONE_PLY;
+                return (byte) (data() >>> 56) * Types.Depth.ONE_PLY;
             }
 
             public int bound() {
-                return genBound8 & 0x3;
+                return (int) (data() >>> 48) & 0x3;
             }
 
             public void save(long k, int v, int b, int d, int m, int ev, int g) {
+                long data = TranspositionTable.load(page, cluster + 8 * i);
+                int key16 = TranspositionTable.key16(page, cluster, i, data);
+
                 if (m != 0 || (k >>> 48) != key16) {
-                    move16 = m;
+                    data = (data & ~0xffffL) | (m & 0xffff);
                 }
 
-                if ((k >>> 48) != key16 || d / Types.Depth.ONE_PLY > depth8 - 4 || b == Types.Bound.BOUND_EXACT) {
-                    key16     = (int) (k >>> 48);
-                    value16   = v;
-                    eval16    = ev;
-                    genBound8 = 0xff & (g | b);
-                    depth8    = d / Types.Depth.ONE_PLY;
+                if ((k >>> 48) != key16 || d / Types.Depth.ONE_PLY > (byte) (data >>> 56) - 4 || b == Types.Bound.BOUND_EXACT) {
+                    key16 = (int) (k >>> 48);
+                    data = (data & 0xffffL)
+                            | ((long) (v & 0xffff) << 16)
+                            | ((long) (ev & 0xffff) << 32)
+                            | ((long) (0xff & (g | b)) << 48)
+                            | ((long) (d / Types.Depth.ONE_PLY) << 56);
                 }
+
+                TranspositionTable.store(page, cluster + 8 * i, data);
+                TranspositionTable.store_key16(page, cluster, i, key16, data);
             }
         }
     }
@@ -6706,7 +8002,7 @@ public class ChessAlgorithm {
 
     public static class Types {
 
-        static final boolean Is64Bit = false;
+        static final boolean Is64Bit = true;
 
         static final int MAX_MOVES = 256;
         static final int MAX_PLY = 128;
@@ -6986,10 +8282,14 @@ public class ChessAlgorithm {
 
         static final String StartFEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
 
-        public static OptionsMap Options = new OptionsMap();
-
-        static class OptionsMap extends HashMap<String, Option> {
+        public static class OptionsMap extends HashMap<String, Option> {
             private static final long serialVersionUID = 10001L;
+
+            final Engine engine;
+
+            OptionsMap(Engine e) {
+                engine = e;
+            }
         }
 
         public static class Option {
@@ -6997,6 +8297,7 @@ public class ChessAlgorithm {
             public int min, max;
             int idx;
             OnChange on_change;
+            Engine engine;
 
 
             public interface OnChange {
@@ -7006,14 +8307,21 @@ public class ChessAlgorithm {
             static OnChange on_clear_hash = new OnChange() {
                 @Override
                 public void method(Option o) {
-                    Search.clear();
+                    Search.clear(o.engine);
                 }
             };
 
             static OnChange on_hash_size = new OnChange() {
                 @Override
                 public void method(Option o) {
-                    tt.TT.resize(o.convertToInteger());
+                    o.engine.TT.resize(o.convertToInteger());
+                }
+            };
+
+            static OnChange on_table_size = new OnChange() {
+                @Override
+                public void method(Option o) {
+                    o.engine.Threads.resize_tables();
                 }
             };
 
@@ -7024,7 +8332,9 @@ public class ChessAlgorithm {
 
             static OnChange on_threads = new OnChange() {
                 @Override
-                public void method(Option o) {}
+                public void method(Option o) {
+                    o.engine.Threads.set(o.convertToInteger());
+                }
             };
 
             static OnChange on_tb_path = new OnChange() {
@@ -7063,11 +8373,31 @@ public class ChessAlgorithm {
             static int insert_order_in_operatorInsertion = 0;
             static void operatorInsertion(OptionsMap optionsMap, String key, Option option) {
                 optionsMap.put(key, option);
+                option.engine = optionsMap.engine;
                 option.idx = insert_order_in_operatorInsertion++;
             }
 
 
 
+            public Option operatorAssignment(String v) {
+                if ((!type.equals("button") && v.isEmpty())
+                        || (type.equals("check") && !v.equals("true") && !v.equals("false"))
+                        || (type.equals("spin") && (Integer.parseInt(v) < min || Integer.parseInt(v) > max))) {
+                    return this;
+                }
+
+                if (!type.equals("button")) {
+                    currentValue = v;
+                }
+
+                if (on_change != null) {
+                    on_change.method(this);
+                }
+
+                return this;
+            }
+
+
             int convertToInteger() {
                 if (type.equals("spin")) {
                     return Integer.parseInt(currentValue);
@@ -7090,6 +8420,8 @@ public class ChessAlgorithm {
             Option.operatorInsertion(o, "Contempt", new Option(20, -100, 100, null));
             Option.operatorInsertion(o, "Threads", new Option(1, 1, 512, Option.on_threads));
             Option.operatorInsertion(o, "Hash", new Option(16, 1, MaxHashMB, Option.on_hash_size));
+            Option.operatorInsertion(o, "Pawn Table Size", new Option(Pawns.Table.DefaultSize, 256, 1 << 22, Option.on_table_size));
+            Option.operatorInsertion(o, "Material Table Size", new Option(Material.Table.DefaultSize, 256, 1 << 22, Option.on_table_size));
             Option.operatorInsertion(o, "Clear Hash", new Option(Option.on_clear_hash));
             Option.operatorInsertion(o, "Ponder", new Option(false, null));
             Option.operatorInsertion(o, "MultiPV", new Option(1, 1, 500, null));
@@ -7099,6 +8431,8 @@ public class ChessAlgorithm {
             Option.operatorInsertion(o, "Slow Mover", new Option(89, 10, 1000, null));
             Option.operatorInsertion(o, "nodestime", new Option(0, 0, 10000, null));
             Option.operatorInsertion(o, "UCI_Chess960", new Option(false, null));
+            Option.operatorInsertion(o, "Medium Limits", new Option("depth 4 deadline 250", null));
+            Option.operatorInsertion(o, "Hard Limits", new Option("depth 10 deadline 1500", null));
             Option.operatorInsertion(o, "SyzygyPath", new Option("<empty>", Option.on_tb_path));
             Option.operatorInsertion(o, "SyzygyProbeDepth", new Option(1, 1, 100, null));
             Option.operatorInsertion(o, "Syzygy50MoveRule", new Option(true, null));
@@ -7106,67 +8440,223 @@ public class ChessAlgorithm {
         }
 
 
-//        public static void loop(Controller controller) {
-//            Position pos = new Position();
-//            Position.StateListPtr[] states = {new Position.StateListPtr()};
-//            states[0].add(new Position.StateInfo());
-////            thread.Threadd uiThread = new thread.Threadd(0);
-//
-//            pos.set(StartFEN, false, states[0].getLast(), thread.Threads.main());
-//            controller.getNewPosition(pos);
-//            Scanner lineScanner = new Scanner("depth 20");
-//            go(pos, lineScanner, states[0]);
-//
-//            Scanner scanner = new Scanner(System.in);
-//            String token = "";
-//            String cmd = "";
-//
-//            do {
-//                cmd = scanner.nextLine();
-//                Scanner lineScanner = new Scanner(cmd);
-//                token = lineScanner.next();
-//
-//                if (token.equals("quit") || token.equals("stop") || (token.equals("ponderhit") && thread.Threads.stopOnPonderhit)) {
-//                    thread.Threads.stop = true;
-//                } else if (token.equals("ponderhit")) {
-//                    thread.Threads.ponder = false;
-//                } else if (token.equals("uci")) {
-//                    System.out.println("id name " + Misc.engine_info() + "\n" + operatorInsertion(Options) + "\nuciok");
-//                } else if (token.equals("setoption")) {
-//                    setoption(lineScanner);
-//                } else if (token.equals("go")) {
-//                    go(pos, lineScanner, states[0]);
-//                } else if (token.equals("position")) {
-//                    position(pos, lineScanner, states);
-//                } else if (token.equals("ucinewgame")) {
-//                    Search.clear();
-//                } else if (token.equals("isready")) {
-//                    System.out.println("readyok");
-//                } else if (token.equals("flip")) {
-//                    pos.flip();
-//                } else if (token.equals("bench")) {
-//                    bench(pos, lineScanner, states);
-//                } else if (token.equals("d")) {
-//                    System.out.println(Position.operatorInsertion(pos));
-//                } else if (token.equals("eval")) {
-//                    System.out.println(Eval.trace(pos));
-//                } else {
-//                    System.out.println("Unknown command: " + cmd);
-//                }
-//
-//                lineScanner.close();
-//            } while (token != "quit");
-//
-//            scanner.close();
-//        }
-
-
-        public static int go(Position pos, Scanner is, Position.StateListPtr states) {
+        public static void loop(Engine engine, Scanner in, PrintStream out) {
+            Position pos = new Position();
+            Position.StateListPtr[] states = {new Position.StateListPtr()};
+            states[0].add(new Position.StateInfo());
+            Thread searching = null;
+            String token;
+
+            engine.Output = out;
+            pos.set(StartFEN, false, states[0].getLast(), engine.Threads.main());
+
+            do {
+                String cmd = in.hasNextLine() ? in.nextLine() : "quit";
+                Scanner is = new Scanner(cmd);
+                token = is.hasNext() ? is.next() : "";
+
+                if (token.equals("quit") || token.equals("stop") || (token.equals("ponderhit") && engine.Threads.stopOnPonderhit)) {
+                    engine.Threads.stop = true;
+                } else if (token.equals("ponderhit")) {
+                    engine.Threads.ponder = false;
+                } else if (token.equals("uci")) {
+                    out.println("id name " + Misc.engine_info() + "\nid author " + Misc.Authors + operatorInsertion(engine.Options) + "\nuciok");
+                } else if (token.equals("isready")) {
+                    out.println("readyok");
+                } else if (token.isEmpty()) {
+                    continue;
+                } else {
+                    // Anything else reads or changes the position, the options or the tables of the running search
+                    join(searching);
+
+                    if (token.equals("go")) {
+                        searching = go_in_background(engine, pos, is, states[0]);
+                    } else if (token.equals("setoption")) {
+                        setoption(engine, is);
+                    } else if (token.equals("position")) {
+                        pos = position(engine, pos, is, states);
+                    } else if (token.equals("ucinewgame")) {
+                        Search.clear(engine);
+                    } else if (token.equals("flip")) {
+                        pos.flip();
+                    } else if (token.equals("bench")) {
+                        try {
+                            bench(engine, pos, is, states);
+                        } catch (IOException e) {
+                            out.println("info string " + e.getMessage());
+                        }
+                    } else if (token.equals("perft")) {
+                        try {
+                            Perft.command(engine, is, out);
+                        } catch (NoSuchElementException | NumberFormatException e) {
+                            out.println("info string Invalid command: " + cmd);
+                        }
+                    } else if (token.equals("d")) {
+                        out.println(Position.operatorInsertion(pos));
+                    } else {
+                        out.println("Unknown command: " + cmd);
+                    }
+                }
+            } while (!token.equals("quit"));
+
+            join(searching);
+            engine.Output = null;
+        }
+
+
+        // "stop" must not reach the pool before start_thinking() has cleared the previous one, so the loop only
+        // goes on once the search has been given its id
+        // The arguments are read here, on the loop thread, so a malformed go is answered at once instead of leaving
+        // the GUI waiting for a bestmove
+        static Thread go_in_background(Engine engine, Position pos, Scanner is, Position.StateListPtr states) {
+            long searchId = engine.Threads.searchId;
+            Search.LimitsType limits;
+
+            try {
+                limits = parse_go(pos, is, System.nanoTime());
+            } catch (NoSuchElementException e) {
+                engine.Output.println("info string Invalid go command");
+                engine.Output.println("bestmove (none)");
+                return null;
+            }
+
+            Thread t = new Thread(() -> engine.Threads.start_thinking(pos, states, limits, limits.ponderMode), "UCI search");
+            t.start();
+
+            while (engine.Threads.searchId == searchId && t.isAlive()) {
+                Thread.yield();
+            }
+
+            return t;
+        }
+
+
+        static void join(Thread t) {
+            if (t == null) {
+                return;
+            }
+
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+
+        public static String operatorInsertion(OptionsMap om) {
+            StringBuilder os = new StringBuilder();
+            List<Map.Entry<String, Option>> list = new ArrayList<>(om.entrySet());
+            list.sort(Comparator.comparingInt(e -> e.getValue().idx));
+
+            for (Map.Entry<String, Option> e : list) {
+                Option o = e.getValue();
+                os.append("\noption name ").append(e.getKey()).append(" type ").append(o.type);
+
+                if (o.type.equals("string") || o.type.equals("check") || o.type.equals("combo")) {
+                    os.append(" default ").append(o.defaultValue);
+                }
+
+                if (o.type.equals("spin")) {
+                    os.append(" default ").append(o.defaultValue).append(" min ").append(o.min).append(" max ").append(o.max);
+                }
+            }
+
+            return os.toString();
+        }
+
+
+        public static void setoption(Engine engine, Scanner is) {
+            String token;
+            StringBuilder name = new StringBuilder(), value = new StringBuilder();
+
+            if (is.hasNext()) {
+                is.next();
+            }
+
+            while (is.hasNext() && !(token = is.next()).equals("value")) {
+                name.append(name.length() == 0 ? "" : " ").append(token);
+            }
+
+            while (is.hasNext()) {
+                value.append(value.length() == 0 ? "" : " ").append(is.next());
+            }
+
+            PrintStream out = engine.Output;
+
+            if (engine.Options.containsKey(name.toString())) {
+                try {
+                    engine.Options.get(name.toString()).operatorAssignment(value.toString());
+                } catch (NumberFormatException e) {
+                    if (out != null) {
+                        out.println("info string Invalid value for " + name + ": " + value);
+                    }
+                }
+            } else if (out != null) {
+                out.println("info string No such option: " + name);
+            }
+        }
+
+
+        public static long bench(Engine engine, Position pos, Scanner args, Position.StateListPtr[] states) throws IOException {
+            String token;
+            long num, nodes = 0, signature = 0xcbf29ce484222325L;
+            int cnt = 1;
+
+            List<String> list = Benchmark.setup_bench(pos, args);
+            num = list.stream().filter(s -> s.startsWith("go")).count();
+
+            long elapsed = System.currentTimeMillis();
+
+            for (String cmd : list) {
+                Scanner is = new Scanner(cmd);
+                token = is.next();
+
+                if (token.equals("go")) {
+                    System.err.print("\nPosition: " + cnt++ + '/' + num);
+                    int bestMove = go(engine, pos, is, states[0]);
+                    long positionNodes = engine.Threads.nodes_searched();
+                    nodes += positionNodes;
+                    signature = (signature ^ positionNodes ^ ((long) bestMove << 40)) * 0x100000001b3L;
+                    System.err.println(" nodes " + positionNodes + " bestmove " + move(bestMove, pos.chess960));
+                } else if (token.equals("setoption")) {
+                    setoption(engine, is);
+                } else if (token.equals("position")) {
+                    pos = position(engine, pos, is, states);
+                } else if (token.equals("ucinewgame")) {
+                    Search.clear(engine);
+                }
+            }
+
+            elapsed = System.currentTimeMillis() - elapsed + 1;
+
+            System.err.println("\n==========================="
+                    + "\nTotal time (ms) : " + elapsed
+                    + "\nNodes searched  : " + nodes
+                    + "\nNodes/second    : " + 1000 * nodes / elapsed
+                    + "\nSignature       : " + Long.toHexString(signature));
+            return nodes;
+        }
+
+
+        public static int go(Engine engine, Position pos, Scanner is, Position.StateListPtr states) {
+            return go(engine, pos, is, states, System.nanoTime());
+        }
+
+
+        public static int go(Engine engine, Position pos, Scanner is, Position.StateListPtr states, long startNanos) {
+            Search.LimitsType limits = parse_go(pos, is, startNanos);
+            return engine.Threads.start_thinking(pos, states, limits, limits.ponderMode);
+        }
+
+
+        // Throws NoSuchElementException (InputMismatchException) when a limit is not followed by a number
+        public static Search.LimitsType parse_go(Position pos, Scanner is, long startNanos) {
             Search.LimitsType limits = new Search.LimitsType();
             String token;
-            boolean ponderMode = false;
 
-            limits.startTime = System.currentTimeMillis();
+            limits.startTime = System.currentTimeMillis() - (System.nanoTime() - startNanos) / 1000000;
+            limits.startNanos = startNanos;
 
             while (is.hasNext() && (token = is.next()) != null) {
                 if (token.equals("searchmoves")) {
@@ -7189,6 +8679,8 @@ public class ChessAlgorithm {
                     limits.nodes = is.nextLong();
                 } else if (token.equals("movetime")) {
                     limits.movetime = is.nextInt();
+                } else if (token.equals("deadline")) {
+                    limits.deadline = is.nextInt();
                 } else if (token.equals("mate")) {
                     limits.mate = is.nextInt();
                 } else if (token.equals("perft")) {
@@ -7196,11 +8688,11 @@ public class ChessAlgorithm {
                 } else if (token.equals("infinite")) {
                     limits.infinite = 1;
                 } else if (token.equals("ponder")) {
-                    ponderMode = true;
+                    limits.ponderMode = true;
                 }
             }
 
-            return thread.Threads.start_thinking(pos, states, limits, ponderMode);
+            return limits;
         }
 
 
@@ -7211,12 +8703,13 @@ public class ChessAlgorithm {
 
         public static String pv(Position pos, int depth, int alpha, int beta) {
             StringBuilder ss = new StringBuilder();
-            int elapsed = Timeman.Time.elapsed() + 1;
+            Engine engine = pos.thisThread.engine;
+            int elapsed = engine.Time.elapsed() + 1;
             final Search.RootMoves rootMoves = pos.thisThread.rootMoves;
             int PVIdx = pos.thisThread.PVIdx;
             int multiPV = Math.min(1, rootMoves.size());
-            long nodesSearched = thread.Threads.nodes_searched();
-            long tbHits = thread.Threads.tb_hits() + (Tablebases.RootInTB ? rootMoves.size() : 0);
+            long nodesSearched = engine.Threads.nodes_searched();
+            long tbHits = engine.Threads.tb_hits() + (Tablebases.RootInTB ? rootMoves.size() : 0);
 
             for (int i = 0; i < multiPV; ++i) {
                 boolean updated = (i <= PVIdx && rootMoves.get(i).score != -Types.Value.VALUE_INFINITE);
@@ -7244,7 +8737,7 @@ public class ChessAlgorithm {
                 ss.append(" nodes " + nodesSearched + " nps " + (nodesSearched * 1000 / elapsed));
 
                 if (elapsed > 1000) {
-                    ss.append(" hashfull " + tt.TT.hashfull());
+                    ss.append(" hashfull " + engine.TT.hashfull());
                 }
 
                 ss.append(" tbhits " + tbHits + " time " + elapsed + " pv");
@@ -7259,9 +8752,10 @@ public class ChessAlgorithm {
 
 
         public static int to_move(Position pos, String str) {
-            for (Movegen.ExtMove m : (new Movegen.MoveList(Movegen.GenType.LEGAL, pos)).moveList) {
-                if (str.equals(move(m.move, pos.chess960))) {
-                    return m.move;
+            Movegen.MoveList moveList = new Movegen.MoveList(Movegen.GenType.LEGAL, pos);
+            for (int i = 0; i < moveList.size(); i++) {
+                if (str.equals(move(moveList.get(i), pos.chess960))) {
+                    return moveList.get(i);
                 }
             }
 
@@ -7269,11 +8763,13 @@ public class ChessAlgorithm {
         }
 
 
-        public static void position(Position pos, Scanner is, Position.StateListPtr[] states) {
+        // Sets up a new Position and StateListPtr, and only replaces states[0] and returns the new position when the
+        // command is valid; otherwise pos is returned unchanged
+        public static Position position(Engine engine, Position pos, Scanner is, Position.StateListPtr[] states) {
             int m;
             String token, fen = null;
 
-            token = is.next();
+            token = is.hasNext() ? is.next() : "";
 
             if (token.equals("startpos")) {
                 fen = StartFEN;
@@ -7281,22 +8777,33 @@ public class ChessAlgorithm {
                     token = is.next();
                 }
             } else if (token.equals("fen")) {
+                fen = "";
                 while (is.hasNext() && (token = is.next()) != null && !token.equals("moves")) {
                     fen += token + " ";
                 }
             } else {
                 is.close();
-                return;
+                return pos;
             }
 
-            states[0] = new Position.StateListPtr();
-            states[0].addLast(new Position.StateInfo());
-            pos.set(fen, false, states[0].getLast(), thread.Threads.main());
+            if (!Position.is_valid_fen(fen)) {
+                if (engine.Output != null) {
+                    engine.Output.println("info string Invalid FEN: " + fen.trim());
+                }
+                return pos;
+            }
+
+            Position.StateListPtr newStates = new Position.StateListPtr();
+            newStates.addLast(new Position.StateInfo());
+            Position newPos = new Position().set(fen, engine.Options.get("UCI_Chess960").convertToInteger() != 0, newStates.getLast(), engine.Threads.main());
 
-            while (is.hasNext() && (token = is.next()) != null && (m = to_move(pos, token)) != Types.Move.MOVE_NONE) {
-                states[0].addLast(new Position.StateInfo());
-                pos.do_move(m, states[0].getLast());
+            while (is.hasNext() && (token = is.next()) != null && (m = to_move(newPos, token)) != Types.Move.MOVE_NONE) {
+                newStates.addLast(new Position.StateInfo());
+                newPos.do_move(m, newStates.getLast());
             }
+
+            states[0] = newStates;
+            return newPos;
         }
 
 
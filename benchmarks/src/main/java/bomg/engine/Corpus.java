@@ -0,0 +1,73 @@
+package bomg.engine;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// The bench positions (openings, middlegames, endgames) plus the perft suite (castling, promotions, en passant),
+// without the Chess960 entry
+@State(Scope.Thread)
+public class Corpus {
+
+    private static boolean initialized;
+
+    public ChessAlgorithm.Position[] positions;
+    public int[][] moves;
+    public boolean[][] checks;
+    public long[] moveBuffer = new long[ChessAlgorithm.Types.MAX_MOVES];
+    public ChessAlgorithm.Position.StateInfo st = new ChessAlgorithm.Position.StateInfo();
+
+
+    public static synchronized void init() {
+        if (!initialized) {
+            new ChessAlgorithm().main();
+            initialized = true;
+        }
+    }
+
+    public static List<String> fens() {
+        Set<String> fens = new LinkedHashSet<>();
+        boolean chess960 = false;
+
+        for (String line : ChessAlgorithm.Benchmark.Defaults) {
+            if (line.startsWith("setoption")) {
+                chess960 = line.endsWith("true");
+            } else if (!chess960) {
+                int idx = line.indexOf(" moves ");
+                fens.add(idx == -1 ? line : line.substring(0, idx));
+            }
+        }
+        for (String fen : ChessAlgorithm.Perft.SuiteFens) {
+            fens.add(fen);
+        }
+        return new ArrayList<>(fens);
+    }
+
+    @Setup
+    public void setup() {
+        init();
+
+        List<String> fens = fens();
+        positions = new ChessAlgorithm.Position[fens.size()];
+        moves = new int[fens.size()][];
+        checks = new boolean[fens.size()][];
+
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = new ChessAlgorithm.Position();
+            positions[i].set(fens.get(i), false, new ChessAlgorithm.Position.StateInfo(), ChessAlgorithm.Engine.Default.Threads.main());
+
+            int size = ChessAlgorithm.Movegen.generate_as_a_function_of_TemplateLEGAL(positions[i], moveBuffer, 0);
+            moves[i] = new int[size];
+            checks[i] = new boolean[size];
+            for (int j = 0; j < size; j++) {
+                moves[i][j] = ChessAlgorithm.Movegen.ExtMove.move(moveBuffer[j]);
+                checks[i][j] = positions[i].gives_check(moves[i][j]);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package bomg.engine;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Evaluates the corpus positions that are not in check; after the first invocation the pawn
+// and material entries come from the main thread's tables
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EvalBenchmark {
+
+    private ChessAlgorithm.Position[] positions;
+    private int[] scores;
+
+    @Setup
+    public void setup(Corpus c) {
+        int n = 0;
+        for (ChessAlgorithm.Position pos : c.positions) {
+            if (pos.st.checkersBB == 0) {
+                n++;
+            }
+        }
+        positions = new ChessAlgorithm.Position[n];
+        n = 0;
+        for (ChessAlgorithm.Position pos : c.positions) {
+            if (pos.st.checkersBB == 0) {
+                positions[n++] = pos;
+            }
+        }
+        scores = new int[n];
+    }
+
+    @Benchmark
+    public int evaluate() {
+        int sum = 0;
+        for (ChessAlgorithm.Position pos : positions) {
+            sum += ChessAlgorithm.Eval.evaluate(pos);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int[] evaluateBatch() {
+        ChessAlgorithm.Eval.evaluateBatch(positions, scores);
+        return scores;
+    }
+}
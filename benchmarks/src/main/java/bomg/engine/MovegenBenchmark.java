@@ -0,0 +1,28 @@
+package bomg.engine;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MovegenBenchmark {
+
+    @Benchmark
+    public int legal(Corpus c) {
+        int n = 0;
+        for (ChessAlgorithm.Position pos : c.positions) {
+            n += ChessAlgorithm.Movegen.generate_as_a_function_of_TemplateLEGAL(pos, c.moveBuffer, 0);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,62 @@
+package bomg.engine;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Each invocation covers every legal move of every corpus position
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PositionBenchmark {
+
+    @Benchmark
+    public void doUndoMove(Corpus c, Blackhole bh) {
+        for (int i = 0; i < c.positions.length; i++) {
+            ChessAlgorithm.Position pos = c.positions[i];
+            int[] moves = c.moves[i];
+            for (int j = 0; j < moves.length; j++) {
+                pos.do_move(moves[j], c.st, c.checks[i][j]);
+                bh.consume(pos.st.key);
+                pos.undo_move(moves[j]);
+            }
+        }
+    }
+
+    @Benchmark
+    public int seeGe(Corpus c) {
+        int n = 0;
+        for (int i = 0; i < c.positions.length; i++) {
+            ChessAlgorithm.Position pos = c.positions[i];
+            for (int m : c.moves[i]) {
+                if (pos.see_ge(m, 0)) {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int givesCheck(Corpus c) {
+        int n = 0;
+        for (int i = 0; i < c.positions.length; i++) {
+            ChessAlgorithm.Position pos = c.positions[i];
+            for (int m : c.moves[i]) {
+                if (pos.gives_check(m)) {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+}
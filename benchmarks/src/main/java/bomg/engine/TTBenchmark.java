@@ -0,0 +1,66 @@
+package bomg.engine;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Probes the keys of every position one move away from the corpus. Half of them are saved in
+// setup, so the benchmark sees both the hit path and the replacement scan of a miss.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TTBenchmark {
+
+    private long[] keys;
+    private final boolean[] found = new boolean[1];
+    private final ChessAlgorithm.tt.TTEntry tte = new ChessAlgorithm.tt.TTEntry();
+
+    @Setup
+    public void setup(Corpus c) {
+        int n = 0;
+        for (int[] moves : c.moves) {
+            n += moves.length;
+        }
+        keys = new long[n];
+        n = 0;
+        for (int i = 0; i < c.positions.length; i++) {
+            for (int j = 0; j < c.moves[i].length; j++) {
+                c.positions[i].do_move(c.moves[i][j], c.st, c.checks[i][j]);
+                keys[n++] = c.positions[i].st.key;
+                c.positions[i].undo_move(c.moves[i][j]);
+            }
+        }
+
+        ChessAlgorithm.Engine.Default.TT.resize(16);
+        ChessAlgorithm.Engine.Default.TT.clear();
+        ChessAlgorithm.Engine.Default.TT.new_search();
+        for (int i = 0; i < keys.length; i += 2) {
+            ChessAlgorithm.Engine.Default.TT.probe(keys[i], found, tte).save(keys[i], 0, ChessAlgorithm.Types.Bound.BOUND_EXACT, 4 * ChessAlgorithm.Types.Depth.ONE_PLY,
+                    ChessAlgorithm.Types.Move.MOVE_NONE, 0, ChessAlgorithm.Engine.Default.TT.generation());
+        }
+    }
+
+    @Benchmark
+    public int probe() {
+        int hits = 0;
+        for (long key : keys) {
+            ChessAlgorithm.Engine.Default.TT.probe(key, found, tte);
+            if (found[0]) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+}